@@ -22,6 +22,8 @@ import org.codelibs.core.lang.ClassUtil;
 import org.codelibs.core.lang.StringUtil;
 import org.codelibs.empros.agent.event.EventFilter;
 import org.codelibs.empros.agent.event.EventManager;
+import org.codelibs.empros.agent.event.EventMerger;
+import org.codelibs.empros.agent.event.OverflowPolicy;
 import org.codelibs.empros.agent.operation.Operation;
 import org.codelibs.empros.agent.scanner.Scanner;
 import org.codelibs.empros.agent.util.PropertiesUtil;
@@ -48,6 +50,8 @@ public class EmprosAgent {
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private final long shutdownTimeout;
+
     public EmprosAgent() {
         eventManager = new EventManager(PropertiesUtil.getAsInt(
                 AGENT_PROPERTIES, "eventSizeInRequest", 100),
@@ -57,6 +61,42 @@ public class EmprosAgent {
                         .getAsString(AGENT_PROPERTIES, "backupAndRestore", "false")),
                 PropertiesUtil.getAsString(AGENT_PROPERTIES, "backupDirectory", ""),
                 PropertiesUtil.getAsLong(AGENT_PROPERTIES, "operationInterval", 0));
+        eventManager.setBackupLog(
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "backupSegmentSize", 64L * 1024 * 1024),
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "backupSyncInterval", 1000L));
+        eventManager.setLogCompression(
+                Boolean.parseBoolean(PropertiesUtil.getAsString(AGENT_PROPERTIES, "logCompression", "false")));
+        eventManager.setBackupCompactionInterval(
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "backupCompactionInterval", 60000L));
+        eventManager.setMaxCompactionKeys(PropertiesUtil.getAsInt(AGENT_PROPERTIES, "maxCompactionKeys", 100000));
+        eventManager.setMaxRestoredEvents(PropertiesUtil.getAsInt(AGENT_PROPERTIES, "maxRestoredEvents", 10000));
+        eventManager.setRestoreRate(PropertiesUtil.getAsLong(AGENT_PROPERTIES, "restoreRate", 0L));
+        eventManager.setEventQueueCapacity(
+                PropertiesUtil.getAsInt(AGENT_PROPERTIES, "eventQueueCapacity", 0),
+                OverflowPolicy.of(PropertiesUtil.getAsString(AGENT_PROPERTIES, "overflowPolicy", "block")),
+                PropertiesUtil.getAsString(AGENT_PROPERTIES, "spillDirectory", "spill"));
+        if (Boolean.parseBoolean(PropertiesUtil.getAsString(AGENT_PROPERTIES, "durable", "false"))) {
+            eventManager.useJournal(PropertiesUtil.getAsString(AGENT_PROPERTIES, "journalDirectory", "journal"));
+        }
+        eventManager.setPriorityLanes(PropertiesUtil.getAsString(AGENT_PROPERTIES, "priorityLanes", StringUtil.EMPTY));
+        eventManager.setQuietPeriod(
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "quietPeriod", 0),
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "maxHoldTime", 60 * 1000L));
+        eventManager.setBatchLimits(
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "maxBatchBytes", 0),
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "minLingerTime", 0),
+                PropertiesUtil.getAsLong(AGENT_PROPERTIES, "maxLingerTime",
+                        PropertiesUtil.getAsLong(AGENT_PROPERTIES, "operationInterval", 0)),
+                Boolean.parseBoolean(PropertiesUtil.getAsString(AGENT_PROPERTIES, "adaptiveLinger", "false")));
+        if (Boolean.parseBoolean(PropertiesUtil.getAsString(AGENT_PROPERTIES, "virtualThreads", "false"))) {
+            eventManager.useVirtualThreads(PropertiesUtil.getAsInt(AGENT_PROPERTIES, "maxInFlightBatches", 100));
+        }
+        eventManager.setDispatchLanes(PropertiesUtil.getAsInt(AGENT_PROPERTIES, "dispatchLanes", 0));
+        if ("disruptor".equals(PropertiesUtil.getAsString(AGENT_PROPERTIES, "eventPipeline", "queue"))) {
+            eventManager.usePipeline(
+                    PropertiesUtil.getAsInt(AGENT_PROPERTIES, "ringBufferSize", 65536),
+                    PropertiesUtil.getAsString(AGENT_PROPERTIES, "waitStrategy", "blocking"));
+        }
         final String[] eventFilters = PropertiesUtil.getAsString(
                 AGENT_PROPERTIES, "eventFilters", StringUtil.EMPTY).split(",");
         for (final String eventFilterClass : eventFilters) {
@@ -66,6 +106,14 @@ public class EmprosAgent {
                 eventManager.addEventFilter(eventFilter);
             }
         }
+        eventManager.setFilterParallelism(PropertiesUtil.getAsInt(AGENT_PROPERTIES, "filterParallelism", 1));
+        final String eventMergerClass = PropertiesUtil.getAsString(
+                AGENT_PROPERTIES, "eventMerger", StringUtil.EMPTY);
+        if (StringUtil.isNotBlank(eventMergerClass)) {
+            final EventMerger eventMerger = ClassUtil.newInstance(eventMergerClass.trim());
+            eventManager.setEventMerger(eventMerger);
+        }
+        shutdownTimeout = PropertiesUtil.getAsLong(AGENT_PROPERTIES, "shutdownTimeout", 10 * 1000L);
     }
 
     public boolean start() {
@@ -124,20 +172,16 @@ public class EmprosAgent {
 
         while (scanner.isRunning()) {
             try {
-                Thread.sleep(10 * 1000);
+                Thread.sleep(100);
             } catch (InterruptedException ignore) {
                 // ignore
             }
 
         }
 
-        while(eventManager.isExecuting()) {
-            try {
-                logger.info("waiting event process");
-                Thread.sleep(10 * 1000);
-            } catch (InterruptedException ignore) {
-                // ignore
-            }
+        while (!eventManager.flush(10 * 1000)) {
+            logger.info("waiting event process. pending:{}, inFlight:{}",
+                    eventManager.getPendingCount(), eventManager.getInFlightCount());
         }
 
         logger.info("Scan is finished. took:{} min", (System.currentTimeMillis() - start) / (60 * 1000));
@@ -151,6 +195,9 @@ public class EmprosAgent {
         if (scanner != null) {
             scanner.stop();
         }
+        if (!eventManager.flush(shutdownTimeout)) {
+            logger.warn("{} events are not processed on shutdown.", eventManager.getPendingCount());
+        }
         eventManager.stop();
         operation.destroy();
     }
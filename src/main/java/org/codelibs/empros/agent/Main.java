@@ -18,6 +18,7 @@ package org.codelibs.empros.agent;
 import org.codelibs.empros.agent.operation.Operation;
 import org.codelibs.empros.agent.operation.es.EsApiOperation;
 import org.codelibs.empros.agent.operation.logging.LoggingOperation;
+import org.codelibs.empros.agent.operation.rest.AsyncRestApiOperation;
 import org.codelibs.empros.agent.operation.rest.RestApiOperation;
 import org.codelibs.empros.agent.scanner.file.FileScanner;
 import org.codelibs.empros.agent.util.PropertiesUtil;
@@ -91,6 +92,8 @@ public class Main {
             return new EsApiOperation();
         } else if(apiType.equals("logging")) {
             return new LoggingOperation();
+        } else if (apiType.equals("async")) {
+            return new AsyncRestApiOperation();
         } else {
             return new RestApiOperation();
         }
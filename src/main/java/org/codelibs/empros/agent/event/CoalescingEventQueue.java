@@ -0,0 +1,349 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * CoalescingEventQueue is a FIFO queue of events indexed by the event key
+ * (see {@link Event.EventComparator}), so an event for a key that is already
+ * queued is merged into the queued one in constant time. A merge never
+ * counts against the capacity.
+ *
+ * With {@link PriorityLanes}, each lane is a FIFO of its own and events are
+ * taken from the lanes by smooth weighted round robin.
+ */
+public class CoalescingEventQueue extends AbstractQueue<Event> {
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final Condition notFull = lock.newCondition();
+
+    protected final List<LinkedHashMap<Event, Event>> laneList = new ArrayList<>();
+
+    protected final PriorityLanes priorityLanes;
+
+    protected final int[] currentWeights;
+
+    protected final int capacity;
+
+    protected int count = 0;
+
+    protected volatile EventMerger eventMerger;
+
+    protected volatile Consumer<Event> discardHandler;
+
+    public CoalescingEventQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public CoalescingEventQueue(final int capacity) {
+        this(capacity, null);
+    }
+
+    public CoalescingEventQueue(final int capacity, final PriorityLanes priorityLanes) {
+        this.capacity = capacity;
+        this.priorityLanes = priorityLanes;
+        final int lanes = priorityLanes != null ? priorityLanes.size() : 1;
+        for (int i = 0; i < lanes; i++) {
+            laneList.add(new LinkedHashMap<>());
+        }
+        currentWeights = new int[lanes];
+    }
+
+    @Override
+    public boolean offer(final Event event) {
+        return enqueue(event, true);
+    }
+
+    public void offerUnbounded(final Event event) {
+        enqueue(event, false);
+    }
+
+    public void put(final Event event) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(event, true)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected boolean enqueue(final Event event, final boolean bounded) {
+        if (event == null) {
+            throw new NullPointerException("event is null.");
+        }
+        lock.lock();
+        try {
+            int lane = priorityLanes != null ? priorityLanes.laneOf(event) : 0;
+            Event queued = null;
+            for (int i = 0; i < laneList.size() && queued == null; i++) {
+                // re-insert to move the key to the tail
+                queued = laneList.get(i).remove(event);
+                if (queued != null) {
+                    // a merged event never loses its priority
+                    lane = Math.min(lane, i);
+                }
+            }
+            if (queued == null) {
+                if (bounded && count >= capacity) {
+                    return false;
+                }
+                laneList.get(lane).put(event, event);
+                count++;
+                return true;
+            }
+
+            final Event merged = eventMerger != null ? eventMerger.merge(queued, event) : event;
+            if (merged == null) {
+                count--;
+                notFull.signal();
+            } else {
+                laneList.get(lane).put(merged, merged);
+            }
+            discard(queued, event, merged);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // exactly one of the two events survives a merge, or none when they cancel out
+    protected void discard(final Event queued, final Event incoming, final Event merged) {
+        if (discardHandler == null) {
+            return;
+        }
+        if (merged == null) {
+            discardHandler.accept(queued);
+            discardHandler.accept(incoming);
+        } else {
+            discardHandler.accept(merged == queued ? incoming : queued);
+        }
+    }
+
+    public void setEventMerger(final EventMerger eventMerger) {
+        this.eventMerger = eventMerger;
+    }
+
+    /**
+     * Sets a handler called with each event that is merged away.
+     */
+    public void setDiscardHandler(final Consumer<Event> discardHandler) {
+        this.discardHandler = discardHandler;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size(final int lane) {
+        lock.lock();
+        try {
+            return laneList.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected int selectLane(final boolean update) {
+        if (laneList.size() == 1) {
+            return laneList.get(0).isEmpty() ? -1 : 0;
+        }
+        int selected = -1;
+        int selectedWeight = 0;
+        int totalWeight = 0;
+        for (int i = 0; i < laneList.size(); i++) {
+            if (laneList.get(i).isEmpty()) {
+                continue;
+            }
+            final int weight = priorityLanes.getWeight(i);
+            final int currentWeight = currentWeights[i] + weight;
+            if (update) {
+                currentWeights[i] = currentWeight;
+            }
+            totalWeight += weight;
+            if (selected == -1 || currentWeight > selectedWeight) {
+                selected = i;
+                selectedWeight = currentWeight;
+            }
+        }
+        if (update && selected != -1) {
+            currentWeights[selected] -= totalWeight;
+        }
+        return selected;
+    }
+
+    protected Event dequeue() {
+        final int lane = selectLane(true);
+        if (lane == -1) {
+            return null;
+        }
+        final Iterator<Event> it = laneList.get(lane).values().iterator();
+        final Event event = it.next();
+        it.remove();
+        count--;
+        return event;
+    }
+
+    @Override
+    public Event poll() {
+        lock.lock();
+        try {
+            final Event event = dequeue();
+            if (event != null) {
+                notFull.signal();
+            }
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest event of the lowest priority lane.
+     */
+    public Event evict() {
+        lock.lock();
+        try {
+            for (int i = laneList.size() - 1; i >= 0; i--) {
+                final Iterator<Event> it = laneList.get(i).values().iterator();
+                if (it.hasNext()) {
+                    final Event event = it.next();
+                    it.remove();
+                    count--;
+                    notFull.signal();
+                    return event;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event peek() {
+        lock.lock();
+        try {
+            final int lane = selectLane(false);
+            return lane != -1 ? laneList.get(lane).values().iterator().next() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(final Collection<? super Event> collection, final int maxEvents) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Event event;
+            while (drained < maxEvents && (event = dequeue()) != null) {
+                collection.add(event);
+                drained++;
+            }
+            if (drained > 0) {
+                notFull.signalAll();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        lock.lock();
+        try {
+            for (final LinkedHashMap<Event, Event> eventMap : laneList) {
+                if (eventMap.containsKey(o)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        lock.lock();
+        try {
+            for (final LinkedHashMap<Event, Event> eventMap : laneList) {
+                if (eventMap.remove(o) != null) {
+                    count--;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (final LinkedHashMap<Event, Event> eventMap : laneList) {
+                eventMap.clear();
+            }
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued events, lane by lane.
+     */
+    @Override
+    public Iterator<Event> iterator() {
+        lock.lock();
+        try {
+            final List<Event> eventList = new ArrayList<>(count);
+            for (final LinkedHashMap<Event, Event> eventMap : laneList) {
+                eventList.addAll(eventMap.values());
+            }
+            return Collections.unmodifiableList(eventList).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -17,13 +17,29 @@ package org.codelibs.empros.agent.event;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 
 public class Event extends HashMap<String, Object> implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    public static final String SOURCE_WATCHER = "watcher";
+
+    public static final String SOURCE_SCANNER = "scanner";
+
+    public static final String SOURCE_RESTORE = "restore";
+
     private EventComparator eventComparator;
 
+    // not sent to the operation, only used to schedule the event
+    private transient String source;
+
+    // EventLog holding this event, or null
+    private transient EventLog eventLog;
+
+    // offset of the EventLog record holding this event, or -1
+    private transient long logOffset = -1;
+
     @Override
     public boolean equals(final Object o) {
         return equals(o, true);
@@ -48,13 +64,52 @@ public class Event extends HashMap<String, Object> implements Serializable {
         return super.hashCode();
     }
 
+    /**
+     * Returns the estimated size of this event serialized as a JSON object.
+     */
+    public int estimateSize() {
+        int size = 2;
+        for (final Map.Entry<String, Object> entry : entrySet()) {
+            size += entry.getKey().length() + String.valueOf(entry.getValue()).length() + 6;
+        }
+        return size;
+    }
+
     public interface EventComparator extends Serializable {
         boolean equals(Event self, Object target);
 
         int hashCode(Event self);
     }
 
+    public EventComparator getEventComparator() {
+        return eventComparator;
+    }
+
     public void setEventComparator(final EventComparator eventComparator) {
         this.eventComparator = eventComparator;
     }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(final String source) {
+        this.source = source;
+    }
+
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    public void setEventLog(final EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    public long getLogOffset() {
+        return logOffset;
+    }
+
+    public void setLogOffset(final long logOffset) {
+        this.logOffset = logOffset;
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventBatcher decides when a batch is flushed: on the max number of events,
+ * the max estimated bytes or the linger time of the first event, whichever
+ * comes first. With adaptive linger, the linger time follows the arrival rate
+ * between the min and max linger time.
+ */
+public class EventBatcher {
+
+    private static final long SAMPLE_INTERVAL = 100L;
+
+    private static final double RATE_WEIGHT = 0.3;
+
+    protected final int maxEvents;
+
+    protected final long maxBytes;
+
+    protected final long minLingerTime;
+
+    protected final long maxLingerTime;
+
+    protected final boolean adaptive;
+
+    protected final LongAdder arrivalCount = new LongAdder();
+
+    protected long lastSampleTime = System.currentTimeMillis();
+
+    protected long lastArrivalCount = 0;
+
+    // events per millisecond
+    protected double arrivalRate = 0;
+
+    protected volatile long lingerTime;
+
+    public EventBatcher(final int maxEvents, final long maxBytes, final long minLingerTime, final long maxLingerTime,
+                        final boolean adaptive) {
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.minLingerTime = Math.min(minLingerTime, maxLingerTime);
+        this.maxLingerTime = maxLingerTime;
+        this.adaptive = adaptive;
+        lingerTime = maxLingerTime;
+    }
+
+    public void onArrival() {
+        arrivalCount.increment();
+    }
+
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    public boolean isFull(final int eventCount, final long bytes) {
+        return eventCount >= maxEvents || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    public boolean exceedsBytes(final long bytes, final int eventBytes) {
+        return maxBytes > 0 && bytes + eventBytes > maxBytes;
+    }
+
+    public void adjustLingerTime() {
+        if (!adaptive) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long elapsed = now - lastSampleTime;
+        if (elapsed < SAMPLE_INTERVAL) {
+            return;
+        }
+        final long count = arrivalCount.sum();
+        final double rate = (double) (count - lastArrivalCount) / elapsed;
+        arrivalRate = RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * arrivalRate;
+        lastSampleTime = now;
+        lastArrivalCount = count;
+
+        if (arrivalRate * maxLingerTime < 1) {
+            // no other event is expected within the linger time
+            lingerTime = minLingerTime;
+        } else {
+            // wait as long as it takes to fill a batch
+            lingerTime = Math.max(minLingerTime, Math.min(maxLingerTime, (long) (maxEvents / arrivalRate)));
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+
+/**
+ * EventCodec reads and writes batches of events in a compact binary format.
+ * Strings are written once per batch, sharing a prefix with the previous
+ * one, and referenced by index afterwards. Values are tagged by type and
+ * values of other types fall back to Java serialization. Batches written by
+ * ObjectOutputStream can still be read. The source of the events, which
+ * is not part of the event, is written only if it is kept.
+ */
+public class EventCodec {
+
+    private static final int MAGIC = 0x45564254; // EVBT
+
+    private static final int VERSION = 2;
+
+    private static final int MAX_SHARED_LENGTH = 64;
+
+    private static final byte NULL = 0;
+
+    private static final byte STRING = 1;
+
+    private static final byte LONG = 2;
+
+    private static final byte INTEGER = 3;
+
+    private static final byte BOOLEAN = 4;
+
+    private static final byte DOUBLE = 5;
+
+    private static final byte SERIALIZED = 9;
+
+    protected boolean sourceKept = false;
+
+    public void setSourceKept(final boolean sourceKept) {
+        this.sourceKept = sourceKept;
+    }
+
+    public void write(final OutputStream out, final List<Event> events) throws IOException {
+        final Output output = new Output(64 + events.size() * 64);
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.writeVarLong(events.size());
+        final StringTable stringTable = new StringTable();
+        for (final Event event : events) {
+            writeString(output, event.getClass().getName(), stringTable, true);
+            final Event.EventComparator comparator = event.getEventComparator();
+            writeString(output, comparator != null ? comparator.getClass().getName() : null, stringTable, true);
+            writeString(output, sourceKept ? event.getSource() : null, stringTable, true);
+            output.writeVarLong(event.size());
+            for (final Map.Entry<String, Object> entry : event.entrySet()) {
+                writeString(output, entry.getKey(), stringTable, true);
+                writeValue(output, entry.getValue(), stringTable);
+            }
+        }
+        out.write(output.buf, 0, output.pos);
+        out.flush();
+    }
+
+    public List<Event> read(final InputStream in) throws IOException {
+        final byte[] bytes = in.readAllBytes();
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xac && (bytes[1] & 0xff) == 0xed) {
+            return readSerialized(bytes);
+        }
+        final Input input = new Input(bytes);
+        final int magic = input.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Unknown event format: " + Integer.toHexString(magic));
+        }
+        final int version = input.readByte() & 0xff;
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported event format version: " + version);
+        }
+
+        final int count = input.readVarInt();
+        final List<Event> events = new ArrayList<>(Math.min(count, bytes.length));
+        final StringTable stringTable = new StringTable();
+        final Map<String, Object> instanceMap = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final Event event = newEvent(readString(input, stringTable, true), instanceMap);
+            final String comparatorClass = readString(input, stringTable, true);
+            if (comparatorClass != null) {
+                event.setEventComparator(newComparator(comparatorClass, instanceMap));
+            }
+            if (version >= 2) {
+                final String source = readString(input, stringTable, true);
+                if (source != null) {
+                    event.setSource(source);
+                }
+            }
+            final int size = input.readVarInt();
+            for (int j = 0; j < size; j++) {
+                final String key = readString(input, stringTable, true);
+                event.put(key, readValue(input, stringTable));
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected List<Event> readSerialized(final byte[] bytes) throws IOException {
+        try (final ObjectInputStream inObject = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (List<Event>) inObject.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Failed to read serialized events.", e);
+        }
+    }
+
+    // constructors of events and instances of comparators are cached per batch
+    protected Event newEvent(final String className, final Map<String, Object> instanceMap) {
+        try {
+            Constructor<?> constructor = (Constructor<?>) instanceMap.get(className);
+            if (constructor == null) {
+                constructor = Class.forName(className).getDeclaredConstructor();
+                instanceMap.put(className, constructor);
+            }
+            return (Event) constructor.newInstance();
+        } catch (final Exception e) {
+            throw new EmprosSystemException("Failed to create " + className, e);
+        }
+    }
+
+    protected Event.EventComparator newComparator(final String className, final Map<String, Object> instanceMap) {
+        try {
+            Object comparator = instanceMap.get(className);
+            if (comparator == null) {
+                comparator = Class.forName(className).getDeclaredConstructor().newInstance();
+                instanceMap.put(className, comparator);
+            }
+            return (Event.EventComparator) comparator;
+        } catch (final Exception e) {
+            throw new EmprosSystemException("Failed to create " + className, e);
+        }
+    }
+
+    protected void writeValue(final Output output, final Object value, final StringTable stringTable)
+            throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            writeString(output, (String) value, stringTable, false);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeVarLong((Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeVarLong((Integer) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeLong(Double.doubleToLongBits((Double) value));
+        } else {
+            output.writeByte(SERIALIZED);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (final ObjectOutputStream outObject = new ObjectOutputStream(bytes)) {
+                outObject.writeObject(value);
+            }
+            output.writeVarLong(bytes.size());
+            output.writeBytes(bytes.toByteArray());
+        }
+    }
+
+    protected Object readValue(final Input input, final StringTable stringTable) throws IOException {
+        final byte type = input.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input, stringTable, false);
+            case LONG:
+                return input.readVarLong();
+            case INTEGER:
+                return input.readVarInt();
+            case BOOLEAN:
+                return input.readByte() != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(input.readLong());
+            case SERIALIZED:
+                final int length = input.readVarInt();
+                try (final ObjectInputStream inObject = new ObjectInputStream(
+                        new ByteArrayInputStream(input.buf, input.skip(length), length))) {
+                    return inObject.readObject();
+                } catch (final ClassNotFoundException e) {
+                    throw new IOException("Failed to read a serialized value.", e);
+                }
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    // 0 is null, n is the (n-1)th string of the table and -n is a new string
+    // sharing the first (n-1) chars with the previous new string
+    protected void writeString(final Output output, final String value, final StringTable stringTable,
+                               final boolean name) {
+        if (value == null) {
+            output.writeVarLong(0);
+            return;
+        }
+        final boolean shared = name || value.length() <= MAX_SHARED_LENGTH;
+        if (shared) {
+            final Integer index = stringTable.indexMap.get(value);
+            if (index != null) {
+                output.writeVarLong(index + 1);
+                return;
+            }
+            stringTable.indexMap.put(value, stringTable.indexMap.size());
+        }
+        final String previous = stringTable.last;
+        int prefix = 0;
+        final int max = Math.min(previous.length(), value.length());
+        while (prefix < max && previous.charAt(prefix) == value.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(value.charAt(prefix - 1))) {
+            prefix--;
+        }
+        stringTable.last = value;
+        output.writeVarLong(-(prefix + 1));
+        output.writeUtf8(value, prefix);
+    }
+
+    protected String readString(final Input input, final StringTable stringTable, final boolean name)
+            throws IOException {
+        final int ref = input.readVarInt();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref > 0) {
+            if (ref > stringTable.stringList.size()) {
+                throw new IOException("Invalid string reference: " + ref);
+            }
+            return stringTable.stringList.get(ref - 1);
+        }
+        final int prefix = -ref - 1;
+        final String previous = stringTable.last;
+        if (prefix > previous.length()) {
+            throw new IOException("Invalid string prefix: " + prefix);
+        }
+        final int length = input.readVarInt();
+        final String suffix = new String(input.buf, input.skip(length), length, StandardCharsets.UTF_8);
+        final String value = prefix == 0 ? suffix : previous.substring(0, prefix).concat(suffix);
+        if (name || value.length() <= MAX_SHARED_LENGTH) {
+            stringTable.stringList.add(value);
+        }
+        stringTable.last = value;
+        return value;
+    }
+
+    /**
+     * Strings of a batch. Long values such as paths are rarely repeated, so
+     * they are only prefix-compressed and not kept in the table. Keys and
+     * class names are always kept.
+     */
+    protected static class StringTable {
+        final Map<String, Integer> indexMap = new HashMap<>();
+
+        final List<String> stringList = new ArrayList<>();
+
+        String last = "";
+    }
+
+    protected static class Output {
+        byte[] buf;
+
+        int pos = 0;
+
+        Output(final int size) {
+            buf = new byte[size];
+        }
+
+        private void ensure(final int length) {
+            if (pos + length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + length));
+            }
+        }
+
+        void writeByte(final int value) {
+            ensure(1);
+            buf[pos++] = (byte) value;
+        }
+
+        void writeBytes(final byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(final int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(final long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        // zigzag, so small negative values take few bytes
+        void writeVarLong(final long value) {
+            ensure(10);
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        // writes the length in bytes and the chars from the offset in UTF-8
+        void writeUtf8(final String value, final int offset) {
+            final int length = value.length() - offset;
+            boolean ascii = true;
+            for (int i = offset; i < value.length() && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (!ascii) {
+                final byte[] bytes = value.substring(offset).getBytes(StandardCharsets.UTF_8);
+                writeVarLong(bytes.length);
+                writeBytes(bytes);
+                return;
+            }
+            writeVarLong(length);
+            ensure(length);
+            for (int i = offset; i < value.length(); i++) {
+                buf[pos++] = (byte) value.charAt(i);
+            }
+        }
+    }
+
+    protected static class Input {
+        final byte[] buf;
+
+        int pos = 0;
+
+        Input(final byte[] buf) {
+            this.buf = buf;
+        }
+
+        // returns the current position and moves past the given length
+        int skip(final int length) throws EOFException {
+            if (length < 0 || pos + length > buf.length) {
+                throw new EOFException();
+            }
+            final int offset = pos;
+            pos += length;
+            return offset;
+        }
+
+        byte readByte() throws EOFException {
+            return buf[skip(1)];
+        }
+
+        int readInt() throws EOFException {
+            final int offset = skip(4);
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (buf[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        long readLong() throws EOFException {
+            final int offset = skip(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buf[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte() & 0xff;
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("Malformed variable-length integer.");
+        }
+
+        int readVarInt() throws IOException {
+            final long value = readVarLong();
+            if (value != (int) value) {
+                throw new IOException("Malformed variable-length integer.");
+            }
+            return (int) value;
+        }
+    }
+}
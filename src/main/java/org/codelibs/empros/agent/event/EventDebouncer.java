@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventDebouncer holds events per key until no event for the key has arrived
+ * for the quiet period, or the key has been held for the max hold time, and
+ * then releases the merged event. Up to capacity keys are held, and an
+ * event for another key is refused while it is full.
+ */
+public class EventDebouncer {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventDebouncer.class);
+
+    protected final long quietPeriod;
+
+    protected final long maxHoldTime;
+
+    protected final Consumer<List<Event>> releaseHandler;
+
+    protected final Map<Event, Pending> pendingMap = new LinkedHashMap<>();
+
+    protected final DelayQueue<Deadline> deadlineQueue = new DelayQueue<>();
+
+    protected volatile int capacity = Integer.MAX_VALUE;
+
+    protected volatile EventMerger eventMerger;
+
+    protected volatile Consumer<Event> discardHandler;
+
+    protected ReleaseThread releaseThread;
+
+    public EventDebouncer(final long quietPeriod, final long maxHoldTime, final Consumer<List<Event>> releaseHandler) {
+        this.quietPeriod = quietPeriod;
+        this.maxHoldTime = Math.max(quietPeriod, maxHoldTime);
+        this.releaseHandler = releaseHandler;
+    }
+
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setEventMerger(final EventMerger eventMerger) {
+        this.eventMerger = eventMerger;
+    }
+
+    /**
+     * Sets a handler called with each event that is merged away.
+     */
+    public void setDiscardHandler(final Consumer<Event> discardHandler) {
+        this.discardHandler = discardHandler;
+    }
+
+    public void start() {
+        releaseThread = new ReleaseThread();
+        releaseThread.setDaemon(true);
+        releaseThread.start();
+    }
+
+    /**
+     * Stops the release thread, and passes the held events to the release
+     * handler, or to the discard handler if they cannot be released any more.
+     */
+    public void stop(final boolean release) {
+        if (releaseThread != null) {
+            releaseThread.shutdown = true;
+            releaseThread.interrupt();
+            try {
+                releaseThread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            releaseThread = null;
+        }
+
+        final List<Event> eventList = new ArrayList<>();
+        synchronized (pendingMap) {
+            final List<Pending> pendingList = new ArrayList<>(pendingMap.values());
+            pendingList.sort(Comparator.comparingLong(pending -> pending.firstTime));
+            for (final Pending pending : pendingList) {
+                eventList.add(pending.event);
+            }
+            pendingMap.clear();
+            deadlineQueue.clear();
+        }
+        if (eventList.isEmpty()) {
+            return;
+        }
+        if (release) {
+            releaseHandler.accept(eventList);
+        } else if (discardHandler != null) {
+            eventList.forEach(discardHandler);
+        }
+    }
+
+    /**
+     * Holds the event, or returns false if it is a new key and capacity
+     * keys are held already.
+     */
+    public boolean offer(final Event event) {
+        final long now = System.currentTimeMillis();
+        synchronized (pendingMap) {
+            Pending pending = pendingMap.remove(event);
+            if (pending == null) {
+                if (pendingMap.size() >= capacity) {
+                    return false;
+                }
+                pending = new Pending(event, now);
+            } else {
+                final Event merged = eventMerger != null ? eventMerger.merge(pending.event, event) : event;
+                discard(pending.event, event, merged);
+                if (merged == null) {
+                    // cancelled out, the scheduled deadline is ignored
+                    return true;
+                }
+                pending.event = merged;
+            }
+            pendingMap.put(pending.event, pending);
+            pending.deadline = Math.min(now + quietPeriod, pending.firstTime + maxHoldTime);
+            if (!pending.scheduled) {
+                pending.scheduled = true;
+                deadlineQueue.add(new Deadline(pending, pending.deadline));
+            }
+            return true;
+        }
+    }
+
+    protected void discard(final Event queued, final Event incoming, final Event merged) {
+        if (discardHandler == null) {
+            return;
+        }
+        if (merged == null) {
+            discardHandler.accept(queued);
+            discardHandler.accept(incoming);
+        } else {
+            discardHandler.accept(merged == queued ? incoming : queued);
+        }
+    }
+
+    public int size() {
+        synchronized (pendingMap) {
+            return pendingMap.size();
+        }
+    }
+
+    protected List<Event> release(final List<Deadline> deadlines) {
+        final long now = System.currentTimeMillis();
+        final List<Event> eventList = new ArrayList<>(deadlines.size());
+        synchronized (pendingMap) {
+            for (final Deadline deadline : deadlines) {
+                final Pending pending = deadline.pending;
+                if (pendingMap.get(pending.event) != pending) {
+                    // merged away
+                    continue;
+                }
+                if (pending.deadline <= now) {
+                    pendingMap.remove(pending.event);
+                    eventList.add(pending.event);
+                } else {
+                    // an event arrived in the quiet period
+                    deadlineQueue.add(new Deadline(pending, pending.deadline));
+                }
+            }
+        }
+        return eventList;
+    }
+
+    protected static class Pending {
+        Event event;
+
+        final long firstTime;
+
+        long deadline;
+
+        boolean scheduled;
+
+        Pending(final Event event, final long firstTime) {
+            this.event = event;
+            this.firstTime = firstTime;
+        }
+    }
+
+    protected static class Deadline implements Delayed {
+        final Pending pending;
+
+        final long time;
+
+        Deadline(final Pending pending, final long time) {
+            this.pending = pending;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            return Long.compare(time, ((Deadline) o).time);
+        }
+    }
+
+    protected class ReleaseThread extends Thread {
+        protected volatile boolean shutdown = false;
+
+        public ReleaseThread() {
+            super("EventDebouncer");
+        }
+
+        @Override
+        public void run() {
+            final List<Deadline> deadlines = new ArrayList<>();
+            while (!shutdown) {
+                try {
+                    deadlines.add(deadlineQueue.take());
+                    deadlineQueue.drainTo(deadlines);
+                    final List<Event> eventList = release(deadlines);
+                    if (!eventList.isEmpty()) {
+                        releaseHandler.accept(eventList);
+                    }
+                } catch (final InterruptedException e) {
+                    // ignore
+                } catch (final Exception e) {
+                    logger.warn("Failed to release events.", e);
+                }
+                deadlines.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * EventFilterChain applies the event filters in order and keeps timing per
+ * filter. A chunk of events can be filtered in parallel on a fork-join pool,
+ * so the filters must be thread-safe when the parallelism is more than 1.
+ */
+public class EventFilterChain {
+
+    protected static final int PARALLEL_THRESHOLD = 256;
+
+    protected final List<EventFilter> eventFilterList = new ArrayList<>();
+
+    protected final List<FilterStats> filterStatsList = new ArrayList<>();
+
+    protected ForkJoinPool forkJoinPool;
+
+    public void addEventFilter(final EventFilter eventFilter) {
+        eventFilterList.add(eventFilter);
+        filterStatsList.add(new FilterStats(eventFilter.getClass().getName()));
+    }
+
+    public void setParallelism(final int parallelism) {
+        if (forkJoinPool != null) {
+            forkJoinPool.shutdown();
+            forkJoinPool = null;
+        }
+        if (parallelism > 1) {
+            forkJoinPool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    public void shutdown() {
+        if (forkJoinPool != null) {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    public Event convert(final Event event) {
+        Event target = event;
+        for (int i = 0; i < eventFilterList.size(); i++) {
+            if (target == null) {
+                return null;
+            }
+            final FilterStats filterStats = filterStatsList.get(i);
+            final long start = System.nanoTime();
+            target = eventFilterList.get(i).convert(target);
+            filterStats.time.add(System.nanoTime() - start);
+            filterStats.count.increment();
+            if (target == null) {
+                filterStats.dropped.increment();
+            }
+        }
+        if (target != event && target != null && target.getEventLog() == null) {
+            // a new event still has to commit the original one
+            target.setEventLog(event.getEventLog());
+            target.setLogOffset(event.getLogOffset());
+            target.setSource(event.getSource());
+        }
+        return target;
+    }
+
+    /**
+     * Converts the events in order. A filtered event is null in the result.
+     */
+    public List<Event> convertAll(final List<Event> eventList) {
+        if (eventFilterList.isEmpty()) {
+            return eventList;
+        }
+        if (forkJoinPool == null || eventList.size() < PARALLEL_THRESHOLD) {
+            final List<Event> convertedList = new ArrayList<>(eventList.size());
+            for (final Event event : eventList) {
+                convertedList.add(convert(event));
+            }
+            return convertedList;
+        }
+        return forkJoinPool.submit(() -> eventList.parallelStream()
+                .map(this::convert)
+                .collect(Collectors.toList())).join();
+    }
+
+    public List<FilterStats> getFilterStats() {
+        return Collections.unmodifiableList(filterStatsList);
+    }
+
+    public static class FilterStats {
+        protected final String name;
+
+        protected final LongAdder count = new LongAdder();
+
+        protected final LongAdder dropped = new LongAdder();
+
+        protected final LongAdder time = new LongAdder();
+
+        public FilterStats(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        public long getTotalNanos() {
+            return time.sum();
+        }
+
+        @Override
+        public String toString() {
+            final long c = getCount();
+            return name + " count:" + c + ", dropped:" + getDropped() + ", avg:" + (c == 0 ? 0 : getTotalNanos() / c) + "ns";
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventJournal writes incoming events to an {@link EventLog} before they are
+ * queued, so events not acknowledged by the operation are replayed after a
+ * crash. Events added while a group is synced to disk are written as the
+ * next group, so one fsync covers many events.
+ *
+ * An event is added before it is synced, so the events of the group being
+ * written when the process crashes are lost. Up to capacity events wait
+ * for the next group.
+ */
+public class EventJournal {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventJournal.class);
+
+    private static final String FILE_PREFIX = "journal-";
+
+    protected final EventLog eventLog;
+
+    protected final Consumer<List<Event>> persistHandler;
+
+    protected final Object lock = new Object();
+
+    protected List<Event> pendingList = new ArrayList<>();
+
+    protected int capacity = Integer.MAX_VALUE;
+
+    protected PersistThread persistThread;
+
+    public EventJournal(final String journalDirectory, final long segmentSize, final boolean compressed,
+                        final Consumer<List<Event>> persistHandler) {
+        this.persistHandler = persistHandler;
+        // synced by the persist thread
+        eventLog = new EventLog(journalDirectory, FILE_PREFIX, segmentSize, -1);
+        eventLog.setCompressed(compressed);
+    }
+
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Returns the events of the next record left by the previous run, or
+     * null if all of them are replayed.
+     */
+    public List<Event> replay() {
+        return eventLog.next();
+    }
+
+    public void start() {
+        persistThread = new PersistThread();
+        persistThread.setDaemon(true);
+        persistThread.start();
+    }
+
+    public void stop() {
+        if (persistThread != null) {
+            persistThread.shutdown = true;
+            persistThread.interrupt();
+            try {
+                persistThread.join(1000L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        eventLog.close();
+    }
+
+    /**
+     * Adds the event to the next group, or returns false if the next group
+     * is full.
+     */
+    public boolean offer(final Event event) {
+        synchronized (lock) {
+            if (pendingList.size() >= capacity) {
+                return false;
+            }
+            pendingList.add(event);
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Adds the event to the next group, waiting while the next group is full.
+     */
+    public void put(final Event event) throws InterruptedException {
+        synchronized (lock) {
+            while (pendingList.size() >= capacity) {
+                lock.wait();
+            }
+            pendingList.add(event);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Removes and returns the oldest event of the next group, or null if
+     * it is empty.
+     */
+    public Event evict() {
+        synchronized (lock) {
+            return pendingList.isEmpty() ? null : pendingList.remove(0);
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return pendingList.size();
+        }
+    }
+
+    protected List<Event> takeGroup() throws InterruptedException {
+        synchronized (lock) {
+            while (pendingList.isEmpty()) {
+                lock.wait();
+            }
+            final List<Event> group = pendingList;
+            pendingList = new ArrayList<>();
+            // wakes up the threads waiting for room
+            lock.notifyAll();
+            return group;
+        }
+    }
+
+    protected void persist(final List<Event> group) {
+        try {
+            eventLog.appendInUse(group);
+            eventLog.sync();
+        } catch (final Exception e) {
+            // the events are still sent, only not kept over a crash
+            logger.warn("Failed to write " + group.size() + " events to the journal.", e);
+        }
+        persistHandler.accept(group);
+    }
+
+    protected class PersistThread extends Thread {
+        protected volatile boolean shutdown = false;
+
+        public PersistThread() {
+            super("EventJournal");
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    persist(takeGroup());
+                } catch (final InterruptedException e) {
+                    // stopped
+                } catch (final Exception e) {
+                    logger.warn("Failed to persist events.", e);
+                }
+            }
+        }
+    }
+}
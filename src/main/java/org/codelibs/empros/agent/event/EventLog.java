@@ -0,0 +1,937 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+import org.codelibs.empros.agent.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventLog is an append-only log of event batches stored in rolling segment
+ * files. Each appended batch is a record with a sequential offset. Records
+ * are read back in order, and a segment is deleted once every event read
+ * from it is committed. The committed offset is kept in a checkpoint file,
+ * so uncommitted records are read again after a restart.
+ *
+ * Each record carries a CRC32 checksum, so a corrupt record is skipped
+ * instead of being restored, and the payload can be deflated.
+ */
+public class EventLog implements Closeable {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventLog.class);
+
+    private static final int MAGIC = 0x45564c47; // EVLG
+
+    private static final int VERSION = 2;
+
+    private static final int SEGMENT_HEADER_SIZE = 5;
+
+    private static final int FLAG_DEFLATED = 1;
+
+    private static final String COMPACTION_SUFFIX = ".compact";
+
+    protected final File directory;
+
+    protected final String prefix;
+
+    protected final long segmentSize;
+
+    protected final long syncInterval;
+
+    protected final EventCodec eventCodec = new EventCodec();
+
+    // base offset -> segment file
+    protected final TreeMap<Long, File> segmentMap = new TreeMap<>();
+
+    protected final File checkpointFile;
+
+    protected FileChannel writeChannel;
+
+    protected long nextOffset = 0;
+
+    protected boolean dirty = false;
+
+    protected FileChannel readChannel;
+
+    protected int readVersion;
+
+    protected long readSegment = -1;
+
+    protected long readOffset;
+
+    protected long committedOffset = 0;
+
+    protected boolean checkpointDirty = false;
+
+    // offset -> events not committed yet, for records that were read
+    protected final Map<Long, Integer> outstandingMap = new HashMap<>();
+
+    protected final TreeSet<Long> committedSet = new TreeSet<>();
+
+    protected ScheduledExecutorService syncExecutor;
+
+    // the last segment compacted
+    protected long compactedSegment = -1;
+
+    protected int maxCompactionKeys = 100000;
+
+    // keys and segments of the last compaction pass
+    protected int lastCompactionKeys;
+
+    protected int lastCompactionSegments;
+
+    protected boolean closed = false;
+
+    protected boolean compressed = false;
+
+    protected final RecordCodec recordCodec = new RecordCodec();
+
+    /**
+     * @param syncInterval interval to fsync appended records in ms, 0 to fsync
+     *                     on every append or a negative value to never fsync
+     */
+    public EventLog(final String directory, final String prefix, final long segmentSize, final long syncInterval) {
+        this.directory = new File(directory);
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new EmprosSystemException(this.directory.getAbsolutePath() + " is not a directory.");
+        }
+        checkpointFile = new File(this.directory, prefix + "checkpoint");
+        try {
+            open();
+        } catch (final IOException e) {
+            throw new EmprosSystemException("Failed to open " + this.directory.getAbsolutePath(), e);
+        }
+        if (syncInterval > 0) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadUtil.newThreadFactory("EventLogSync", false, true));
+            syncExecutor.scheduleWithFixedDelay(new SyncTask(), syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(prefix) && name.endsWith(COMPACTION_SUFFIX)) {
+                    // left by an interrupted compaction
+                    Files.deleteIfExists(file.toPath());
+                } else if (name.startsWith(prefix) && !file.equals(checkpointFile)) {
+                    try {
+                        segmentMap.put(Long.parseLong(name.substring(prefix.length())), file);
+                    } catch (final NumberFormatException e) {
+                        logger.warn("Invalid segment file: {}", file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        if (checkpointFile.exists()) {
+            final byte[] bytes = Files.readAllBytes(checkpointFile.toPath());
+            if (bytes.length == 8) {
+                committedOffset = ByteBuffer.wrap(bytes).getLong();
+            }
+        }
+        if (segmentMap.isEmpty()) {
+            nextOffset = committedOffset;
+        } else {
+            final Map.Entry<Long, File> last = segmentMap.lastEntry();
+            nextOffset = last.getKey() + recover(last.getValue());
+            if (committedOffset < segmentMap.firstKey()) {
+                committedOffset = segmentMap.firstKey();
+            }
+            nextOffset = Math.max(nextOffset, committedOffset);
+        }
+        readOffset = committedOffset;
+        deleteCommittedSegments();
+        if (nextOffset > committedOffset && logger.isInfoEnabled()) {
+            logger.info("Found {} records in {}", nextOffset - committedOffset, directory.getAbsolutePath());
+        }
+    }
+
+    // returns the number of records in the segment, truncating a broken tail
+    private int recover(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final int version = readHeader(channel);
+            if (version == -1) {
+                logger.warn("Invalid segment file: {}", file.getAbsolutePath());
+                channel.truncate(0);
+                writeHeader(channel);
+                return 0;
+            }
+            int count = 0;
+            long position = channel.position();
+            byte[] body;
+            while ((body = readRecord(channel, version)) != null) {
+                if (channel.position() == channel.size() && !recordCodec.verify(body, version)) {
+                    // torn write
+                    break;
+                }
+                count++;
+                position = channel.position();
+            }
+            if (position < channel.size()) {
+                logger.warn("Truncated a broken record at {} in {}", position, file.getAbsolutePath());
+                channel.truncate(position);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Keeps the source of the events in the records appended from now on.
+     */
+    public synchronized void setSourceKept(final boolean sourceKept) {
+        eventCodec.setSourceKept(sourceKept);
+    }
+
+    /**
+     * Deflates the records appended from now on.
+     */
+    public synchronized void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public synchronized long append(final List<Event> events) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            eventCodec.write(bytes, events);
+            final byte[] record = recordCodec.encode(bytes.toByteArray(), compressed);
+            if (writeChannel == null || writeChannel.position() + record.length > segmentSize
+                    && writeChannel.position() > SEGMENT_HEADER_SIZE) {
+                rollSegment();
+            }
+            final long position = writeChannel.position();
+            final ByteBuffer buffer = ByteBuffer.wrap(record);
+            try {
+                while (buffer.hasRemaining()) {
+                    writeChannel.write(buffer);
+                }
+            } catch (final IOException e) {
+                // a partial record would hide the records appended after it
+                try {
+                    writeChannel.truncate(position);
+                    writeChannel.position(position);
+                } catch (final IOException e1) {
+                    e.addSuppressed(e1);
+                }
+                throw e;
+            }
+            if (syncInterval == 0) {
+                writeChannel.force(false);
+            } else {
+                dirty = true;
+            }
+            return nextOffset++;
+        } catch (final IOException e) {
+            throw new EmprosSystemException("Failed to append events to " + directory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Appends a record whose events are in use right away, so the record is
+     * never returned by {@link #next()} and is committed like a read one.
+     * All records must have been read before.
+     */
+    public synchronized long appendInUse(final List<Event> events) {
+        if (readOffset != nextOffset) {
+            throw new IllegalStateException("Unread records remain in " + directory.getAbsolutePath());
+        }
+        final long offset = append(events);
+        readOffset = nextOffset;
+        // the reader is positioned again if records are read later
+        closeReader();
+        if (events.isEmpty()) {
+            markCommitted(offset);
+            advanceCommittedOffset();
+        } else {
+            outstandingMap.put(offset, events.size());
+        }
+        for (final Event event : events) {
+            event.setEventLog(this);
+            event.setLogOffset(offset);
+        }
+        return offset;
+    }
+
+    protected void rollSegment() throws IOException {
+        if (writeChannel == null && !segmentMap.isEmpty()) {
+            // continue the last segment after a restart
+            final Map.Entry<Long, File> last = segmentMap.lastEntry();
+            if (last.getValue().length() < segmentSize) {
+                writeChannel = FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                if (readHeader(writeChannel) == VERSION) {
+                    writeChannel.position(writeChannel.size());
+                    return;
+                }
+                // a segment of an older version is not continued
+                writeChannel.close();
+                writeChannel = null;
+            }
+        }
+        if (writeChannel != null) {
+            writeChannel.force(false);
+            writeChannel.close();
+        }
+        final File file = new File(directory, String.format("%s%019d", prefix, nextOffset));
+        writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader(writeChannel);
+        segmentMap.put(nextOffset, file);
+    }
+
+    /**
+     * Returns the events of the next unread record, each holding the offset
+     * of the record, or null if all records are read.
+     */
+    public synchronized List<Event> next() {
+        while (readOffset < nextOffset) {
+            try {
+                if (readChannel == null) {
+                    openReader();
+                }
+                final byte[] body = readRecord(readChannel, readVersion);
+                if (body == null) {
+                    // move to the next segment
+                    final Long next = segmentMap.higherKey(readSegment);
+                    if (next == null || next != readOffset) {
+                        throw new IOException("Missing records from " + readOffset);
+                    }
+                    closeReader();
+                    continue;
+                }
+                final long offset = readOffset;
+                final byte[] payload = recordCodec.decode(body, readVersion);
+                if (payload == null) {
+                    logger.warn("Skipped a corrupt record {} in {}", offset, directory.getAbsolutePath());
+                    markCommitted(readOffset++);
+                    advanceCommittedOffset();
+                    continue;
+                }
+                final List<Event> events = eventCodec.read(new ByteArrayInputStream(payload));
+                readOffset++;
+                for (final Event event : events) {
+                    event.setEventLog(this);
+                    event.setLogOffset(offset);
+                }
+                if (events.isEmpty()) {
+                    markCommitted(offset);
+                } else {
+                    outstandingMap.put(offset, events.size());
+                }
+                return events;
+            } catch (final IOException e) {
+                logger.warn("Failed to read a record " + readOffset + " in " + directory.getAbsolutePath(), e);
+                closeReader();
+                skipBrokenRecords();
+            }
+        }
+        return null;
+    }
+
+    protected void openReader() throws IOException {
+        final Map.Entry<Long, File> entry = segmentMap.floorEntry(readOffset);
+        if (entry == null) {
+            throw new IOException("No segment for " + readOffset);
+        }
+        readChannel = FileChannel.open(entry.getValue().toPath(), StandardOpenOption.READ);
+        readSegment = entry.getKey();
+        readVersion = readHeader(readChannel);
+        if (readVersion == -1) {
+            throw new IOException("Invalid segment file: " + entry.getValue().getAbsolutePath());
+        }
+        for (long offset = entry.getKey(); offset < readOffset; offset++) {
+            if (!skipRecord(readChannel, readVersion)) {
+                throw new IOException("Missing records from " + offset);
+            }
+        }
+    }
+
+    private void closeReader() {
+        if (readChannel != null) {
+            try {
+                readChannel.close();
+            } catch (final IOException e) {
+                logger.warn("Failed to close a segment.", e);
+            }
+            readChannel = null;
+        }
+    }
+
+    // gives up the rest of an unreadable segment
+    protected void skipBrokenRecords() {
+        final Long next = segmentMap.higherKey(readSegment);
+        final long skipTo = next != null ? next : nextOffset;
+        while (readOffset < skipTo) {
+            markCommitted(readOffset++);
+        }
+        advanceCommittedOffset();
+    }
+
+    public synchronized boolean hasNext() {
+        return readOffset < nextOffset;
+    }
+
+    public synchronized void commit(final Event event) {
+        if (event.getEventLog() == this) {
+            commitOffset(event.getLogOffset(), 1);
+            advanceCommittedOffset();
+        }
+    }
+
+    /**
+     * Commits the events held by this log, ignoring the others.
+     */
+    public synchronized void commit(final Collection<Event> events) {
+        for (final Event event : events) {
+            if (event.getEventLog() == this) {
+                commitOffset(event.getLogOffset(), 1);
+            }
+        }
+        advanceCommittedOffset();
+    }
+
+    /**
+     * Commits all events of a record.
+     */
+    public synchronized void commit(final long offset) {
+        final Integer count = outstandingMap.get(offset);
+        if (count != null) {
+            commitOffset(offset, count);
+            advanceCommittedOffset();
+        }
+    }
+
+    protected void commitOffset(final long offset, final int count) {
+        final Integer outstanding = outstandingMap.get(offset);
+        if (outstanding == null) {
+            return;
+        }
+        if (outstanding > count) {
+            outstandingMap.put(offset, outstanding - count);
+        } else {
+            outstandingMap.remove(offset);
+            markCommitted(offset);
+        }
+    }
+
+    protected void markCommitted(final long offset) {
+        committedSet.add(offset);
+    }
+
+    protected void advanceCommittedOffset() {
+        final long previous = committedOffset;
+        while (committedSet.remove(committedOffset)) {
+            committedOffset++;
+        }
+        if (committedOffset == previous) {
+            return;
+        }
+        checkpointDirty = true;
+        deleteCommittedSegments();
+        if (syncInterval == 0) {
+            writeCheckpoint();
+        }
+    }
+
+    private void deleteCommittedSegments() {
+        while (segmentMap.size() > 1) {
+            final Map.Entry<Long, File> first = segmentMap.firstEntry();
+            if (segmentMap.higherKey(first.getKey()) > committedOffset) {
+                break;
+            }
+            if (readSegment == first.getKey()) {
+                closeReader();
+            }
+            segmentMap.remove(first.getKey());
+            try {
+                Files.deleteIfExists(first.getValue().toPath());
+            } catch (final IOException e) {
+                logger.warn("Failed to delete " + first.getValue().getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Limits the keys held in memory by a compaction pass. The events of
+     * other keys are kept as they are.
+     */
+    public synchronized void setMaxCompactionKeys(final int maxCompactionKeys) {
+        this.maxCompactionKeys = Math.max(maxCompactionKeys, 1);
+    }
+
+    /**
+     * Rewrites the sealed segments that are not read yet, keeping for each
+     * key only the net effect of its events at the position of the last one.
+     * The offsets of the records do not change, so a record may become empty.
+     * Each segment is compacted once, by the first pass after it is sealed,
+     * and a pass tracks at most maxCompactionKeys keys. This runs without
+     * holding the log except to swap the segments.
+     */
+    public void compact(final EventMerger eventMerger) {
+        final TreeMap<Long, File> segments;
+        final int maxKeys;
+        synchronized (this) {
+            if (closed || segmentMap.isEmpty()) {
+                return;
+            }
+            segments = new TreeMap<>(segmentMap.headMap(segmentMap.lastKey(), false)
+                    .tailMap(Math.max(readOffset, compactedSegment + 1), true));
+            if (segments.isEmpty()) {
+                return;
+            }
+            maxKeys = maxCompactionKeys;
+        }
+
+        final EventCodec codec = new EventCodec();
+        final RecordCodec compactionCodec = new RecordCodec();
+        final Map<Event, Position> positionMap = new HashMap<>();
+        final Map<Long, File> compactedMap = new TreeMap<>();
+        try {
+            int eventCount = 0;
+            for (final Map.Entry<Long, File> entry : segments.entrySet()) {
+                long offset = entry.getKey();
+                try (final FileChannel channel = FileChannel.open(entry.getValue().toPath(), StandardOpenOption.READ)) {
+                    final int version = readSegmentVersion(channel, entry.getValue());
+                    List<Event> events;
+                    while ((events = readEvents(channel, version, codec, compactionCodec)) != null) {
+                        for (int i = 0; i < events.size(); i++) {
+                            final Event event = events.get(i);
+                            final Position position = positionMap.get(event);
+                            if (position == null) {
+                                if (positionMap.size() < maxKeys) {
+                                    positionMap.put(event, new Position(event, offset, i));
+                                }
+                            } else {
+                                position.event = position.event == null || eventMerger == null ? event
+                                        : eventMerger.merge(position.event, event);
+                                position.mergedCount++;
+                                position.offset = offset;
+                                position.index = i;
+                            }
+                        }
+                        eventCount += events.size();
+                        offset++;
+                    }
+                }
+            }
+            int removedCount = 0;
+            for (final Position position : positionMap.values()) {
+                removedCount += position.mergedCount + (position.event == null ? 1 : 0);
+            }
+            final int keptCount = eventCount - removedCount;
+            if (removedCount > 0) {
+                for (final Map.Entry<Long, File> entry : segments.entrySet()) {
+                    compactedMap.put(entry.getKey(),
+                            writeCompactedSegment(entry.getKey(), entry.getValue(), positionMap, codec, compactionCodec));
+                }
+            }
+
+            synchronized (this) {
+                if (closed || segments.firstKey() < readOffset || !segmentMap.entrySet().containsAll(segments.entrySet())) {
+                    // read or deleted in the meantime
+                    return;
+                }
+                if (readSegment >= segments.firstKey()) {
+                    closeReader();
+                }
+                // the last segment holds the merged events, so it is replaced first
+                for (final Long base : segments.descendingKeySet()) {
+                    final File compacted = compactedMap.remove(base);
+                    if (compacted != null) {
+                        Files.move(compacted.toPath(), segments.get(base).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                compactedSegment = segments.lastKey();
+                lastCompactionKeys = positionMap.size();
+                lastCompactionSegments = segments.size();
+            }
+            if (removedCount > 0 && logger.isInfoEnabled()) {
+                logger.info("Compacted {} events into {} in {}", eventCount, keptCount, directory.getAbsolutePath());
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to compact " + directory.getAbsolutePath(), e);
+        } finally {
+            compactionCodec.end();
+            for (final File file : compactedMap.values()) {
+                if (!file.delete()) {
+                    logger.warn("Failed to delete {}", file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    protected static int readSegmentVersion(final FileChannel channel, final File file) throws IOException {
+        final int version = readHeader(channel);
+        if (version == -1) {
+            throw new IOException("Invalid segment file: " + file.getAbsolutePath());
+        }
+        return version;
+    }
+
+    // returns the events of the next record, none for a corrupt record, or null at the end
+    protected static List<Event> readEvents(final FileChannel channel, final int version, final EventCodec codec,
+                                            final RecordCodec recordCodec) throws IOException {
+        final long position = channel.position();
+        final byte[] body = readRecord(channel, version);
+        if (body == null) {
+            return null;
+        }
+        try {
+            final byte[] payload = recordCodec.decode(body, version);
+            if (payload != null) {
+                return codec.read(new ByteArrayInputStream(payload));
+            }
+        } catch (final IOException | RuntimeException e) {
+            // a record that cannot be restored is skipped
+        }
+        logger.warn("Skipped a corrupt record at {}", position);
+        return new ArrayList<>();
+    }
+
+    protected File writeCompactedSegment(final long base, final File file, final Map<Event, Position> positionMap,
+                                         final EventCodec codec, final RecordCodec recordCodec) throws IOException {
+        final File compacted = new File(directory, file.getName() + COMPACTION_SUFFIX);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                final FileChannel compactedChannel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final int version = readSegmentVersion(channel, file);
+            writeHeader(compactedChannel);
+            long offset = base;
+            List<Event> events;
+            while ((events = readEvents(channel, version, codec, recordCodec)) != null) {
+                final List<Event> keptEvents = new ArrayList<>();
+                for (int i = 0; i < events.size(); i++) {
+                    final Position position = positionMap.get(events.get(i));
+                    if (position == null) {
+                        // not tracked by this pass
+                        keptEvents.add(events.get(i));
+                    } else if (position.offset == offset && position.index == i && position.event != null) {
+                        keptEvents.add(position.event);
+                    }
+                }
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                codec.write(bytes, keptEvents);
+                final ByteBuffer buffer = ByteBuffer.wrap(recordCodec.encode(bytes.toByteArray(), compressed));
+                while (buffer.hasRemaining()) {
+                    compactedChannel.write(buffer);
+                }
+                offset++;
+            }
+            compactedChannel.force(false);
+        }
+        return compacted;
+    }
+
+    /**
+     * Syncs the appended records and the checkpoint, and returns false if
+     * the records could not be synced.
+     */
+    public synchronized boolean sync() {
+        boolean synced = true;
+        try {
+            if (dirty && writeChannel != null) {
+                writeChannel.force(false);
+                dirty = false;
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to sync " + directory.getAbsolutePath(), e);
+            synced = false;
+        }
+        if (checkpointDirty) {
+            writeCheckpoint();
+        }
+        return synced;
+    }
+
+    protected void writeCheckpoint() {
+        try (final FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, committedOffset);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (syncInterval >= 0) {
+                channel.force(false);
+            }
+            checkpointDirty = false;
+        } catch (final IOException e) {
+            logger.warn("Failed to write " + checkpointFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Moves batches written to files by older versions into this log.
+     */
+    public void importFiles(final String filePrefix) {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(filePrefix));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        for (final File file : files) {
+            try (final InputStream in = Files.newInputStream(file.toPath())) {
+                append(eventCodec.read(in));
+                Files.delete(file.toPath());
+            } catch (final Exception e) {
+                logger.warn("Failed to import " + file.getAbsolutePath(), e);
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Imported {} files into {}", files.length, directory.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        sync();
+        closeReader();
+        if (writeChannel != null) {
+            try {
+                writeChannel.close();
+            } catch (final IOException e) {
+                logger.warn("Failed to close a segment.", e);
+            }
+            writeChannel = null;
+        }
+        recordCodec.end();
+    }
+
+    protected static void writeHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        buffer.putInt(MAGIC).put((byte) VERSION).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // returns the version of the segment, or -1 if it is not a segment
+    protected static int readHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        if (!readFully(channel, buffer) || buffer.getInt(0) != MAGIC) {
+            return -1;
+        }
+        final int version = buffer.get(4);
+        return version >= 1 && version <= VERSION ? version : -1;
+    }
+
+    // returns the body of the record at the position, or null at the end
+    protected static byte[] readRecord(final FileChannel channel, final int version) throws IOException {
+        final long position = channel.position();
+        final int length = readBodyLength(channel, version);
+        if (length < 0) {
+            return null;
+        }
+        final ByteBuffer body = ByteBuffer.allocate(length);
+        if (!readFully(channel, body)) {
+            channel.position(position);
+            return null;
+        }
+        return body.array();
+    }
+
+    protected static boolean skipRecord(final FileChannel channel, final int version) throws IOException {
+        final int length = readBodyLength(channel, version);
+        if (length < 0) {
+            return false;
+        }
+        channel.position(channel.position() + length);
+        return true;
+    }
+
+    // flags and checksum are part of the body from version 2
+    protected static int readBodyLength(final FileChannel channel, final int version) throws IOException {
+        final long position = channel.position();
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        if (!readFully(channel, header)) {
+            channel.position(position);
+            return -1;
+        }
+        final int length = header.getInt(0) + (version == 1 ? 0 : 5);
+        if (length < 0 || position + 4 + length > channel.size()) {
+            channel.position(position);
+            return -1;
+        }
+        return length;
+    }
+
+    protected static boolean readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // fsyncs the appended records every syncInterval
+    protected class SyncTask implements Runnable {
+        @Override
+        public void run() {
+            sync();
+        }
+    }
+
+    // where the net effect of the events of a key is kept
+    protected static class Position {
+        Event event;
+
+        long offset;
+
+        int index;
+
+        // events folded into the kept one
+        int mergedCount;
+
+        Position(final Event event, final long offset, final int index) {
+            this.event = event;
+            this.offset = offset;
+            this.index = index;
+        }
+    }
+
+    /**
+     * RecordCodec frames, checksums and deflates record payloads.
+     * It is not thread-safe.
+     */
+    protected static class RecordCodec {
+        protected final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        protected final Inflater inflater = new Inflater();
+
+        protected final CRC32 crc32 = new CRC32();
+
+        // [int length][byte flags][int crc32 of flags and data][data]
+        protected byte[] encode(final byte[] payload, final boolean compressed) {
+            byte flags = 0;
+            byte[] data = payload;
+            if (compressed) {
+                final byte[] deflated = deflate(payload);
+                if (deflated.length < payload.length) {
+                    flags |= FLAG_DEFLATED;
+                    data = deflated;
+                }
+            }
+            crc32.reset();
+            crc32.update(flags);
+            crc32.update(data);
+            final ByteBuffer buffer = ByteBuffer.allocate(9 + data.length);
+            buffer.putInt(data.length);
+            buffer.put(flags);
+            buffer.putInt((int) crc32.getValue());
+            buffer.put(data);
+            return buffer.array();
+        }
+
+        // returns the payload of a record, or null if the checksum does not match
+        protected byte[] decode(final byte[] body, final int version) throws IOException {
+            if (version == 1) {
+                return body;
+            }
+            if (!verify(body, version)) {
+                return null;
+            }
+            if ((body[0] & FLAG_DEFLATED) == 0) {
+                return Arrays.copyOfRange(body, 5, body.length);
+            }
+            return inflate(body, 5, body.length - 5);
+        }
+
+        protected boolean verify(final byte[] body, final int version) {
+            if (version == 1) {
+                return true;
+            }
+            crc32.reset();
+            crc32.update(body[0]);
+            crc32.update(body, 5, body.length - 5);
+            return (int) crc32.getValue() == ByteBuffer.wrap(body, 1, 4).getInt();
+        }
+
+        protected byte[] deflate(final byte[] bytes) {
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+
+        protected byte[] inflate(final byte[] bytes, final int offset, final int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(bytes, offset, length);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            final byte[] buffer = new byte[8192];
+            try {
+                while (!inflater.finished()) {
+                    final int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && inflater.needsInput()) {
+                        throw new IOException("Truncated deflated data.");
+                    }
+                    out.write(buffer, 0, inflated);
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException("Invalid deflated data.", e);
+            }
+            return out.toByteArray();
+        }
+
+        protected void end() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+}
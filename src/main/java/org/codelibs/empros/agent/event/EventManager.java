@@ -15,27 +15,30 @@
  */
 package org.codelibs.empros.agent.event;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
-import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import org.codelibs.empros.agent.listener.OperationListener;
 import org.codelibs.empros.agent.operation.Operation;
+import org.codelibs.empros.agent.util.ThreadUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,13 +54,46 @@ public class EventManager {
 
     protected final int maxPoolSize;
 
-    protected Queue<Event> eventQueue = new ConcurrentLinkedQueue<>();
+    protected CoalescingEventQueue eventQueue = new CoalescingEventQueue();
 
-    protected List<EventFilter> eventFilterList = new ArrayList<>();
+    protected int eventQueueCapacity = Integer.MAX_VALUE;
+
+    protected PriorityLanes priorityLanes;
+
+    protected final EventFilterChain eventFilterChain = new EventFilterChain();
 
     protected final AtomicBoolean running = new AtomicBoolean(false);
 
-    protected final AtomicBoolean executing = new AtomicBoolean(false);
+    // events accepted but not yet acknowledged, dropped, filtered or merged away
+    protected final AtomicLong pendingCount = new AtomicLong();
+
+    protected final AtomicLong inFlightCount = new AtomicLong();
+
+    protected final AtomicLong filteredCount = new AtomicLong();
+
+    protected final Queue<CompletableFuture<Void>> drainFutureQueue = new ConcurrentLinkedQueue<>();
+
+    protected EventLog backupLog;
+
+    protected long backupSegmentSize = 64L * 1024 * 1024;
+
+    protected long backupSyncInterval = 1000L;
+
+    protected boolean logCompression = false;
+
+    protected int maxRestoredEvents = 10000;
+
+    protected long restoreRate = 0;
+
+    protected RestoreScheduler restoreScheduler;
+
+    protected EventJournal eventJournal;
+
+    protected long backupCompactionInterval = 60000L;
+
+    protected int maxCompactionKeys = 100000;
+
+    protected ScheduledExecutorService compactionExecutor;
 
     protected MonitoringThread monitoringThread;
 
@@ -67,6 +103,34 @@ public class EventManager {
 
     protected final long operationInterval;
 
+    protected EventPipeline eventPipeline;
+
+    protected EventMerger eventMerger;
+
+    protected EventBatcher eventBatcher;
+
+    protected EventDebouncer eventDebouncer;
+
+    protected boolean virtualThreads = false;
+
+    protected Semaphore inFlightSemaphore;
+
+    protected int dispatchLanes = 0;
+
+    protected PartitionedDispatcher partitionedDispatcher;
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    protected EventSpiller eventSpiller;
+
+    protected final AtomicLong blockedCount = new AtomicLong();
+
+    protected final AtomicLong droppedOldestCount = new AtomicLong();
+
+    protected final AtomicLong droppedNewestCount = new AtomicLong();
+
+    protected final AtomicLong spilledCount = new AtomicLong();
+
     public EventManager(final int eventSizeInRequest, final int requestPoolSize, final boolean backupAndRestore,
                         final String backupDirectory, final long operationInterval) {
         this.eventSizeInRequest = eventSizeInRequest;
@@ -78,6 +142,8 @@ public class EventManager {
             this.backupDirectory = backupDirectory + "/";
         }
         this.operationInterval = operationInterval;
+        eventBatcher = new EventBatcher(eventSizeInRequest, 0, 0, operationInterval, false);
+        createEventQueue();
     }
 
     public void start() {
@@ -85,9 +151,57 @@ public class EventManager {
             // already running
             return;
         }
-        executorService = Executors.newFixedThreadPool(maxPoolSize);
-        monitoringThread = new MonitoringThread();
-        monitoringThread.start();
+        if (virtualThreads) {
+            executorService = Executors.newThreadPerTaskExecutor(ThreadUtil.newThreadFactory("EventOperation", true, false));
+        } else {
+            // the monitoring thread waits for a free slot instead of queuing batches without limit
+            executorService = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(maxPoolSize),
+                    ThreadUtil.newThreadFactory("EventOperation", false, false), (r, executor) -> {
+                try {
+                    // a task queued after the shutdown would never run, so the wait gives up on it
+                    while (!executor.getQueue().offer(r, 100L, TimeUnit.MILLISECONDS)) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("EventManager is stopped.");
+                        }
+                    }
+                    if (executor.isShutdown() && executor.remove(r)) {
+                        throw new RejectedExecutionException("EventManager is stopped.");
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for a request slot.", e);
+                }
+            });
+        }
+        if (dispatchLanes > 0) {
+            partitionedDispatcher = new PartitionedDispatcher(this::execute, dispatchLanes, 2, virtualThreads);
+            partitionedDispatcher.start();
+        }
+        if (eventDebouncer != null) {
+            eventDebouncer.setCapacity(eventQueueCapacity);
+            eventDebouncer.start();
+        }
+        if (eventPipeline != null) {
+            eventPipeline.start();
+        } else {
+            monitoringThread = new MonitoringThread();
+            monitoringThread.start();
+        }
+        if (eventJournal != null) {
+            replayJournal();
+            eventJournal.setCapacity(eventQueueCapacity);
+            eventJournal.start();
+        }
+        if (restoreScheduler != null) {
+            restoreScheduler.start();
+        }
+        if (backupLog != null && backupCompactionInterval > 0) {
+            compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadUtil.newThreadFactory("EventLogCompaction", false, true));
+            compactionExecutor.scheduleWithFixedDelay(() -> backupLog.compact(eventMerger),
+                    backupCompactionInterval, backupCompactionInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void stop() {
@@ -95,15 +209,188 @@ public class EventManager {
             // stopped
             return;
         }
+        if (eventJournal != null) {
+            eventJournal.stop();
+        }
+        if (restoreScheduler != null) {
+            restoreScheduler.stop();
+        }
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdown();
+        }
+        if (eventDebouncer != null) {
+            // the pipeline drains the published events, the monitoring thread has stopped taking them
+            eventDebouncer.stop(eventPipeline != null);
+        }
+        if (eventPipeline != null) {
+            eventPipeline.stop();
+        }
+        if (partitionedDispatcher != null) {
+            partitionedDispatcher.stop();
+        }
         executorService.shutdown();
+        eventFilterChain.shutdown();
+        if (backupLog != null) {
+            backupLog.close();
+        }
+        if (eventSpiller != null) {
+            eventSpiller.close();
+        }
+        if (logger.isInfoEnabled()) {
+            if (priorityLanes != null) {
+                for (int i = 0; i < priorityLanes.size(); i++) {
+                    logger.info("Priority lane. name:{}, weight:{}, queued:{}",
+                            priorityLanes.getName(i), priorityLanes.getWeight(i), eventQueue.size(i));
+                }
+            }
+            for (final EventFilterChain.FilterStats filterStats : eventFilterChain.getFilterStats()) {
+                logger.info("Filter stats. {}", filterStats);
+            }
+            logger.info("Overflow counts. blocked:{}, droppedOldest:{}, droppedNewest:{}, spilled:{}",
+                    blockedCount.get(), droppedOldestCount.get(), droppedNewestCount.get(), spilledCount.get());
+        }
+    }
+
+    public void setEventMerger(final EventMerger eventMerger) {
+        this.eventMerger = eventMerger;
+        eventQueue.setEventMerger(eventMerger);
+        if (eventDebouncer != null) {
+            eventDebouncer.setEventMerger(eventMerger);
+        }
+    }
+
+    public void setQuietPeriod(final long quietPeriod, final long maxHoldTime) {
+        if (quietPeriod <= 0) {
+            return;
+        }
+        eventDebouncer = new EventDebouncer(quietPeriod, maxHoldTime, eventList -> {
+            for (final Event event : eventList) {
+                enqueue(event);
+            }
+            submit();
+        });
+        eventDebouncer.setEventMerger(eventMerger);
+        eventDebouncer.setDiscardHandler(this::release);
+    }
+
+    public void setBatchLimits(final long maxBatchBytes, final long minLingerTime, final long maxLingerTime,
+                               final boolean adaptiveLinger) {
+        eventBatcher = new EventBatcher(eventSizeInRequest, maxBatchBytes, minLingerTime, maxLingerTime, adaptiveLinger);
+    }
+
+    /**
+     * Runs batches on virtual threads, bounding the batches in flight by a
+     * semaphore instead of the size of the thread pool.
+     */
+    public void useVirtualThreads(final int maxInFlightBatches) {
+        virtualThreads = true;
+        inFlightSemaphore = new Semaphore(maxInFlightBatches);
+    }
+
+    public void setDispatchLanes(final int dispatchLanes) {
+        this.dispatchLanes = dispatchLanes;
+    }
+
+    public void setEventQueueCapacity(final int capacity, final OverflowPolicy overflowPolicy, final String spillDirectory) {
+        if (capacity <= 0) {
+            return;
+        }
+        eventQueueCapacity = capacity;
+        createEventQueue();
+        this.overflowPolicy = overflowPolicy;
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            eventSpiller = new EventSpiller(spillDirectory, Math.max(capacity / 4, 1), logCompression);
+            eventSpiller.setWrittenHandler(eventList -> eventList.forEach(this::detachLog));
+        }
+    }
+
+    /**
+     * Splits the event queue into weighted lanes, e.g. "delete:8,watcher:4,scanner:1".
+     * The disruptor pipeline does not use the lanes.
+     */
+    public void setPriorityLanes(final String lanes) {
+        if (lanes == null || lanes.trim().isEmpty()) {
+            return;
+        }
+        priorityLanes = new PriorityLanes(lanes);
+        createEventQueue();
+    }
+
+    private void createEventQueue() {
+        eventQueue = new CoalescingEventQueue(eventQueueCapacity, priorityLanes);
+        eventQueue.setEventMerger(eventMerger);
+        eventQueue.setDiscardHandler(new DiscardHandler());
+    }
+
+    public void usePipeline(final int ringBufferSize, final String waitStrategy) {
+        eventPipeline = new EventPipeline(this, ringBufferSize, waitStrategy);
+    }
+
+    /**
+     * @param syncInterval interval to fsync the backup log in ms, 0 to fsync
+     *                     on every failed batch or a negative value to never fsync
+     */
+    public void setBackupLog(final long segmentSize, final long syncInterval) {
+        backupSegmentSize = segmentSize;
+        backupSyncInterval = syncInterval;
+    }
+
+    /**
+     * Writes events to a journal before they are queued, and replays the
+     * events not acknowledged by the operation on start. addEvent returns
+     * before the event is synced, so the events of the group being synced
+     * are lost on a crash. The next group holds up to the capacity of the
+     * event queue, and the overflow policy applies to it.
+     */
+    public void useJournal(final String journalDirectory) {
+        eventJournal = new EventJournal(journalDirectory, backupSegmentSize, logCompression, this::onPersisted);
+    }
+
+    /**
+     * Merges the pending backed-up events by key in the background, so a
+     * key changed many times while the operation failed is restored once.
+     * 0 disables it.
+     */
+    public void setBackupCompactionInterval(final long backupCompactionInterval) {
+        this.backupCompactionInterval = backupCompactionInterval;
+    }
+
+    /**
+     * Limits the keys held in memory while the backup is compacted.
+     */
+    public void setMaxCompactionKeys(final int maxCompactionKeys) {
+        this.maxCompactionKeys = maxCompactionKeys;
+    }
+
+    /**
+     * Deflates the records of the backup and spill files.
+     */
+    public void setLogCompression(final boolean logCompression) {
+        this.logCompression = logCompression;
+    }
+
+    /**
+     * Limits the restored events held in memory, so a large backup is
+     * restored as fast as the operation sends it.
+     */
+    public void setMaxRestoredEvents(final int maxRestoredEvents) {
+        this.maxRestoredEvents = maxRestoredEvents;
+    }
+
+    /**
+     * @param restoreRate max restored events per second, 0 for no limit
+     */
+    public void setRestoreRate(final long restoreRate) {
+        this.restoreRate = restoreRate;
     }
 
     public void setOperation(final Operation operation) {
         this.operation = operation;
-        this.operation.addOperationListener(new ResultHandler());
+        // back up failed events before they are settled
         if (backupAndRestore) {
             this.operation.addOperationListener(new EventBackupListener());
         }
+        this.operation.addOperationListener(new ResultHandler());
     }
 
     public void addEvent(final Event event) {
@@ -111,13 +398,292 @@ public class EventManager {
             logger.warn("Added event is null.");
             return;
         }
-        executing.set(true);
-        eventQueue.remove(event);
-        eventQueue.add(event);
+        pendingCount.incrementAndGet();
+        eventBatcher.onArrival();
+        if (eventJournal != null) {
+            journal(event);
+        } else {
+            accept(event);
+        }
+    }
+
+    // applies the overflow policy to the next journal group, as enqueue does to the queue
+    protected void journal(final Event event) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!eventJournal.offer(event)) {
+                    final Event evicted = eventJournal.evict();
+                    if (evicted != null) {
+                        droppedOldestCount.incrementAndGet();
+                        release(evicted);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!eventJournal.offer(event)) {
+                    droppedNewestCount.incrementAndGet();
+                    release(event);
+                }
+                break;
+            default:
+                // the spill file takes the events from the queue, not from the journal
+                if (!eventJournal.offer(event)) {
+                    blockedCount.incrementAndGet();
+                    try {
+                        eventJournal.put(event);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        droppedNewestCount.incrementAndGet();
+                        release(event);
+                        logger.warn("Interrupted while waiting for the event journal. Dropped {}", event);
+                    }
+                }
+                break;
+        }
+    }
+
+    protected void accept(final Event event) {
+        // a rescan or a restore is not debounced, and a full debouncer leaves new keys to the queue
+        if (eventDebouncer == null || !Event.SOURCE_WATCHER.equals(event.getSource())
+                || !eventDebouncer.offer(event)) {
+            enqueue(event);
+        }
+    }
+
+    protected void onPersisted(final List<Event> eventList) {
+        for (final Event event : eventList) {
+            accept(event);
+        }
+        submit();
+    }
+
+    protected void replayJournal() {
+        int replayedNum = 0;
+        List<Event> eventList;
+        while ((eventList = eventJournal.replay()) != null) {
+            for (final Event event : eventList) {
+                addRestoredEvent(event);
+            }
+            replayedNum += eventList.size();
+        }
+        if (replayedNum > 0) {
+            submit();
+            if (logger.isInfoEnabled()) {
+                logger.info("Replayed Event Num: {}", replayedNum);
+            }
+        }
+    }
+
+    protected void enqueue(final Event event) {
+        if (eventPipeline != null) {
+            eventPipeline.publish(event);
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!eventQueue.offer(event)) {
+                    final Event evicted = eventQueue.evict();
+                    if (evicted != null) {
+                        droppedOldestCount.incrementAndGet();
+                        release(evicted);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!eventQueue.offer(event)) {
+                    droppedNewestCount.incrementAndGet();
+                    release(event);
+                }
+                break;
+            case SPILL:
+                synchronized (eventSpiller) {
+                    // keep spilling until the spilled events are restored, so the order is kept
+                    if (!eventSpiller.isEmpty() || !eventQueue.offer(event)) {
+                        // the log holding the event is committed once the spill file is synced
+                        eventSpiller.spill(event);
+                        spilledCount.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                if (!eventQueue.offer(event)) {
+                    blockedCount.incrementAndGet();
+                    try {
+                        eventQueue.put(event);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        droppedNewestCount.incrementAndGet();
+                        release(event);
+                        logger.warn("Interrupted while waiting for the event queue. Dropped {}", event);
+                    }
+                }
+                break;
+        }
+    }
+
+    protected void addRestoredEvent(final Event event) {
+        pendingCount.incrementAndGet();
+        event.setSource(Event.SOURCE_RESTORE);
+        if (eventPipeline != null) {
+            eventPipeline.publish(event);
+        } else {
+            // restored events must not block the operation thread that restores them
+            eventQueue.offerUnbounded(event);
+        }
+    }
+
+    protected void addRestoredEvents(final List<Event> eventList) {
+        for (final Event event : eventList) {
+            addRestoredEvent(event);
+        }
+        submit();
+    }
+
+    protected void restoreSpilledEvents() {
+        if (eventSpiller == null) {
+            return;
+        }
+        synchronized (eventSpiller) {
+            while (eventQueue.size() < eventQueue.getCapacity() / 2 && !eventSpiller.isEmpty()) {
+                for (final Event event : eventSpiller.restore()) {
+                    eventQueue.offerUnbounded(event);
+                }
+            }
+        }
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    public long getDroppedOldestCount() {
+        return droppedOldestCount.get();
+    }
+
+    public long getDroppedNewestCount() {
+        return droppedNewestCount.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.get();
     }
 
     public boolean isExecuting() {
-        return executing.get();
+        return pendingCount.get() > 0;
+    }
+
+    /**
+     * Returns a future completed when every accepted event has been
+     * acknowledged by the operation, backed up, dropped or filtered.
+     */
+    public CompletableFuture<Void> drain() {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        drainFutureQueue.add(future);
+        if (pendingCount.get() == 0) {
+            completeDrainFutures();
+        }
+        return future;
+    }
+
+    public boolean flush(final long timeout) {
+        try {
+            drain().get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (final TimeoutException e) {
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            logger.warn("Failed to drain events.", e);
+            return false;
+        }
+    }
+
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getQueuedCount() {
+        return eventQueue.size();
+    }
+
+    public long getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    protected void settle(final int eventCount) {
+        if (pendingCount.addAndGet(-eventCount) <= 0) {
+            completeDrainFutures();
+        }
+    }
+
+    protected void completeDrainFutures() {
+        CompletableFuture<Void> future;
+        while ((future = drainFutureQueue.poll()) != null) {
+            if (pendingCount.get() > 0) {
+                // drained after new events were added, so it waits for them
+                drainFutureQueue.add(future);
+                if (pendingCount.get() > 0) {
+                    return;
+                }
+                continue;
+            }
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Settles an event that is not sent, committing it if it was restored.
+     */
+    protected void release(final Event event) {
+        final EventLog eventLog = detachLog(event);
+        if (eventLog != null && eventLog == backupLog) {
+            restoreScheduler.onSettled(1);
+        }
+        settle(1);
+    }
+
+    // commits the event in the log holding it, and returns the log
+    protected EventLog detachLog(final Event event) {
+        final EventLog eventLog = event.getEventLog();
+        if (eventLog != null) {
+            eventLog.commit(event);
+            event.setEventLog(null);
+            event.setLogOffset(-1);
+        }
+        return eventLog;
+    }
+
+    protected void onFiltered(final Event event) {
+        filteredCount.incrementAndGet();
+        release(event);
+    }
+
+    protected void onCompleted(final List<Event> eventList) {
+        if (backupLog != null) {
+            int count = 0;
+            for (final Event event : eventList) {
+                if (event.getEventLog() == backupLog) {
+                    count++;
+                }
+            }
+            if (count > 0) {
+                backupLog.commit(eventList);
+                restoreScheduler.onSettled(count);
+            }
+        }
+        if (eventJournal != null) {
+            // failed events are backed up by now
+            eventJournal.getEventLog().commit(eventList);
+        }
+        inFlightCount.addAndGet(-eventList.size());
+        settle(eventList.size());
     }
 
     public void submit() {
@@ -127,75 +693,202 @@ public class EventManager {
     }
 
     public void addEventFilter(final EventFilter eventFilter) {
-        eventFilterList.add(eventFilter);
+        eventFilterChain.addEventFilter(eventFilter);
+    }
+
+    public void setFilterParallelism(final int filterParallelism) {
+        eventFilterChain.setParallelism(filterParallelism);
+    }
+
+    public EventFilterChain getEventFilterChain() {
+        return eventFilterChain;
     }
 
     protected Event convert(final Event event) {
-        Event target = event;
-        for (final EventFilter eventFilter : eventFilterList) {
-            if (target == null) {
-                return null;
-            }
-            target = eventFilter.convert(target);
+        final Event convertedEvent = eventFilterChain.convert(event);
+        if (convertedEvent == null) {
+            onFiltered(event);
+        }
+        return convertedEvent;
+    }
+
+    /**
+     * Adds the event to a batch keyed by event. An event with a key already
+     * in the batch is merged into the batched one like in the event queue,
+     * and the superseded events are released.
+     *
+     * @return the change of the estimated bytes of the batch
+     */
+    protected long addToBatch(final Map<Event, Event> batchMap, final Event event) {
+        final Event batched = batchMap.remove(event);
+        if (batched == null) {
+            batchMap.put(event, event);
+            return event.estimateSize();
+        }
+        final int batchedBytes = batched.estimateSize();
+        final Event merged = eventMerger != null ? eventMerger.merge(batched, event) : event;
+        if (merged == null) {
+            release(batched);
+            release(event);
+            return -batchedBytes;
+        }
+        batchMap.put(merged, merged);
+        release(merged == batched ? event : batched);
+        return merged.estimateSize() - batchedBytes;
+    }
+
+    protected void dispatch(final List<Event> eventList) {
+        inFlightCount.addAndGet(eventList.size());
+        try {
+            doDispatch(eventList);
+        } catch (final RuntimeException e) {
+            onCompleted(eventList);
+            throw e;
+        }
+    }
+
+    protected void doDispatch(final List<Event> eventList) {
+        if (partitionedDispatcher != null) {
+            partitionedDispatcher.dispatch(eventList);
+            return;
+        }
+        if (inFlightSemaphore == null) {
+            executorService.execute(() -> execute(eventList));
+            return;
+        }
+
+        try {
+            inFlightSemaphore.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a request slot.", e);
+        }
+        try {
+            executorService.execute(() -> {
+                try {
+                    execute(eventList);
+                } finally {
+                    inFlightSemaphore.release();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            inFlightSemaphore.release();
+            throw e;
+        }
+    }
+
+    protected void execute(final List<Event> eventList) {
+        try {
+            operation.excute(eventList);
+        } catch (final Exception e) {
+            // the operation did not call back, so the events are settled here
+            logger.warn("Failed to execute " + eventList.size() + " events.", e);
+            onCompleted(eventList);
         }
-        return target;
     }
 
     protected class MonitoringThread extends Thread {
 
+        private static final long IDLE_WAIT_TIME = 1000L;
+
+        private final List<Event> chunk = new ArrayList<>();
+
+        private Map<Event, Event> batchMap = new LinkedHashMap<>();
+
+        private long batchBytes = 0;
+
+        private long firstEventTime = 0;
+
         @Override
         public void run() {
             while (running.get()) {
-                if (eventQueue.isEmpty()) {
-                    synchronized (EventManager.this) {
-                        try {
-                            EventManager.this.wait();
-                        } catch (final InterruptedException e) {
-                            // ignore
-                        }
-                    }
-                } else {
-                    if(operationInterval > 0) {
-                        try {
-                            sleep(operationInterval);
-                        } catch(final InterruptedException e) {
-                            // ignore
+                restoreSpilledEvents();
+                chunk.clear();
+                if (eventQueue.drainTo(chunk, eventSizeInRequest) == 0) {
+                    if (batchMap.isEmpty()) {
+                        waitForEvents(IDLE_WAIT_TIME);
+                    } else {
+                        final long remaining = firstEventTime + eventBatcher.getLingerTime() - System.currentTimeMillis();
+                        if (remaining > 0) {
+                            waitForEvents(remaining);
+                        } else {
+                            flush();
                         }
                     }
+                    continue;
+                }
 
-                    final Set<Event> eventSet = new LinkedHashSet<>();
-                    while (eventSet.size() < eventSizeInRequest) {
-                        final Event event = eventQueue.poll();
-                        if (event == null) {
-                            break;
-                        }
-                        Event convertedEvent = convert(event);
-                        if(convertedEvent != null) {
-                            eventSet.add(convertedEvent);
-                        }
+                final List<Event> convertedList = eventFilterChain.convertAll(chunk);
+                for (int i = 0; i < convertedList.size(); i++) {
+                    final Event convertedEvent = convertedList.get(i);
+                    if (convertedEvent == null) {
+                        onFiltered(chunk.get(i));
+                        continue;
+                    }
+                    final int eventBytes = convertedEvent.estimateSize();
+                    if (!batchMap.isEmpty() && eventBatcher.exceedsBytes(batchBytes, eventBytes)) {
+                        flush();
+                    }
+                    if (batchMap.isEmpty()) {
+                        firstEventTime = System.currentTimeMillis();
+                    }
+                    batchBytes += addToBatch(batchMap, convertedEvent);
+                    if (eventBatcher.isFull(batchMap.size(), batchBytes)) {
+                        flush();
                     }
+                }
+
+                final long lingerTime = eventBatcher.getLingerTime();
+                if (!batchMap.isEmpty() && lingerTime > 0 && System.currentTimeMillis() - firstEventTime >= lingerTime) {
+                    flush();
+                }
+            }
+        }
+
+        private void flush() {
+            eventBatcher.adjustLingerTime();
+            if (batchMap.isEmpty()) {
+                return;
+            }
+            try {
+                dispatch(new ArrayList<>(batchMap.values()));
+            } catch (final Exception e) {
+                logger.warn("Failed to dispatch " + batchMap.size() + " events.", e);
+            }
+            batchMap = new LinkedHashMap<>();
+            batchBytes = 0;
+        }
 
-                    if (!eventSet.isEmpty()) {
-                        executorService.execute(() ->
-                                operation.excute(new ArrayList<>(eventSet))
-                        );
+        private void waitForEvents(final long timeout) {
+            synchronized (EventManager.this) {
+                if (eventQueue.isEmpty()) {
+                    try {
+                        EventManager.this.wait(timeout);
+                    } catch (final InterruptedException e) {
+                        // ignore
                     }
                 }
             }
         }
     }
 
+    // releases the events merged away in the queue
+    private class DiscardHandler implements Consumer<Event> {
+        @Override
+        public void accept(final Event event) {
+            release(event);
+        }
+    }
+
     private class ResultHandler implements OperationListener {
         @Override
         public void successHandler(final List<Event> eventList) {
-            if (eventQueue.isEmpty()) {
-                executing.set(false);
-            }
+            onCompleted(eventList);
         }
 
         @Override
         public void errorHandler(List<Event> eventList) {
-            // do nothing
+            onCompleted(eventList);
         }
 
         @Override
@@ -205,23 +898,29 @@ public class EventManager {
     }
 
     private class EventBackupListener implements OperationListener {
-        private String filePrefix = "evbk-";
+        private static final String OLD_FILE_PREFIX = "evbk-";
+
+        EventBackupListener() {
+            backupLog = new EventLog(backupDirectory, "evlog-", backupSegmentSize, backupSyncInterval);
+            backupLog.setCompressed(logCompression);
+            backupLog.setMaxCompactionKeys(maxCompactionKeys);
+            backupLog.importFiles(OLD_FILE_PREFIX);
+            restoreScheduler = new RestoreScheduler(backupLog, EventManager.this::addRestoredEvents,
+                    maxRestoredEvents, restoreRate);
+        }
 
         @Override
         public void successHandler(List<Event> eventList) {
-            restoreEvents();
+            restoreScheduler.onSuccess();
         }
 
         @Override
         public void restoredHandler() {
-            restoreEvents();
+            restoreScheduler.onRestored();
         }
 
         @Override
         public void errorHandler(final List<Event> eventList) {
-            final String fileName = backupDirectory
-                    + filePrefix + (new Date()).getTime() + "-" + Thread.currentThread().getName();
-            final File file = new File(fileName);
             if (logger.isDebugEnabled()) {
                 logger.debug("Callded Error Handler.");
                 for (final Event event : eventList) {
@@ -234,98 +933,14 @@ public class EventManager {
                     }
                     logger.debug(logBuffer.toString());
                 }
-                logger.debug("Event Backup to -> {}", file.getAbsolutePath());
             }
 
-            try (final FileOutputStream outFile = new FileOutputStream(file);
-                 final ObjectOutputStream outObject = new ObjectOutputStream(outFile)
-            ) {
-                outObject.writeObject(eventList);
+            try {
+                backupLog.append(eventList);
             } catch (final Exception e) {
                 logger.warn("Failed to export backup event.", e);
             }
-        }
-
-        private void restoreEvents() {
-            final File dir = new File(backupDirectory);
-            if (!dir.isDirectory()) {
-                logger.warn("{} is not a directory.", dir.getAbsolutePath());
-                return;
-            }
-            final List<Event> restoreEventList = new ArrayList<>();
-
-            synchronized (this) {
-                if (!exsitsBackupEvent(dir)) {
-                    return;
-                }
-
-                File[] files = dir.listFiles();
-                final List<File> bkFileList = new ArrayList<>();
-                for (final File file : files) {
-                    if (file.getName().startsWith(filePrefix)) {
-                        bkFileList.add(file);
-                    }
-                }
-
-                for (final File file : bkFileList) {
-                    try (final FileInputStream inFile = new FileInputStream(file);
-                         final ObjectInputStream inObject = new ObjectInputStream(inFile)
-                    ) {
-                        final List<Event> events = (List<Event>) inObject.readObject();
-                        restoreEventList.addAll(events);
-                    } catch (final Exception e) {
-                        logger.warn("Failed to restore event.", e);
-                    }
-
-                    try {
-                        Files.deleteIfExists(file.toPath());
-                    } catch (final IOException e) {
-                        logger.warn("Failed to delete file.", e);
-                    }
-                }
-            }
-            if (logger.isInfoEnabled()) {
-                logger.info("Restored Event Num: {}", restoreEventList.size());
-            }
-
-            int eventCount = 0;
-            for (final Event event : restoreEventList) {
-                if (logger.isDebugEnabled()) {
-                    final StringBuilder logBuffer = new StringBuilder("Restored event-> ");
-                    for (final Map.Entry<String, Object> entry : event.entrySet()) {
-                        logBuffer.append(entry.getKey());
-                        logBuffer.append(":");
-                        logBuffer.append(entry.getValue().toString());
-                        logBuffer.append(" ");
-                    }
-                    logger.debug(logBuffer.toString());
-                }
-
-                addEvent(event);
-                eventCount++;
-                if (eventCount >= 100) {
-                    submit();
-                    eventCount = 0;
-                }
-            }
-            submit();
-        }
-
-        private boolean exsitsBackupEvent(final File dir) {
-            if (!dir.isDirectory()) {
-                return false;
-            }
-            File[] files = dir.listFiles();
-            if (files == null || files.length == 0) {
-                return false;
-            }
-
-            for (final File file : files) {
-                if (file.getName().startsWith(filePrefix)) {
-                    return true;
-                }
-            }
-            return false;
+            restoreScheduler.onBackedUp();
         }
     }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.LiteBlockingWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+/**
+ * EventPipeline hands events from producers to the operation through a
+ * preallocated ring buffer, running filter, batch and dispatch stages in order.
+ */
+public class EventPipeline {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventPipeline.class);
+
+    private static final EventTranslatorOneArg<EventSlot, Event> TRANSLATOR = (slot, sequence, event) -> slot.event = event;
+
+    protected final EventManager eventManager;
+
+    protected final int ringBufferSize;
+
+    protected final String waitStrategy;
+
+    protected Disruptor<EventSlot> disruptor;
+
+    public EventPipeline(final EventManager eventManager, final int ringBufferSize, final String waitStrategy) {
+        this.eventManager = eventManager;
+        // the ring buffer size must be a power of 2
+        this.ringBufferSize = Integer.highestOneBit(Math.max(ringBufferSize - 1, 1)) << 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public void start() {
+        disruptor = new Disruptor<>(EventSlot::new, ringBufferSize, new PipelineThreadFactory(),
+                ProducerType.MULTI, createWaitStrategy(waitStrategy));
+        disruptor.handleEventsWith(new FilterHandler())
+                .then(new BatchHandler())
+                .then(new DispatchHandler());
+        disruptor.start();
+        if (logger.isInfoEnabled()) {
+            logger.info("EventPipeline is started. ringBufferSize:{}, waitStrategy:{}", ringBufferSize, waitStrategy);
+        }
+    }
+
+    public void stop() {
+        if (disruptor == null) {
+            return;
+        }
+        try {
+            disruptor.shutdown(10, TimeUnit.SECONDS);
+        } catch (final Exception e) {
+            logger.warn("Failed to drain EventPipeline.", e);
+            disruptor.halt();
+        }
+    }
+
+    public void publish(final Event event) {
+        disruptor.publishEvent(TRANSLATOR, event);
+    }
+
+    protected WaitStrategy createWaitStrategy(final String name) {
+        switch (name) {
+            case "busySpin":
+                return new BusySpinWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "liteBlocking":
+                return new LiteBlockingWaitStrategy();
+            case "blocking":
+                return new BlockingWaitStrategy();
+            default:
+                logger.warn("unknown wait strategy: {}", name);
+                return new BlockingWaitStrategy();
+        }
+    }
+
+    protected static class EventSlot {
+        Event event;
+
+        List<Event> batch;
+    }
+
+    protected class FilterHandler implements EventHandler<EventSlot> {
+        @Override
+        public void onEvent(final EventSlot slot, final long sequence, final boolean endOfBatch) {
+            slot.event = eventManager.convert(slot.event);
+        }
+    }
+
+    protected class BatchHandler implements EventHandler<EventSlot> {
+        private final Map<Event, Event> batchMap = new LinkedHashMap<>();
+
+        @Override
+        public void onEvent(final EventSlot slot, final long sequence, final boolean endOfBatch) {
+            if (slot.event != null) {
+                eventManager.addToBatch(batchMap, slot.event);
+            }
+            if (!batchMap.isEmpty() && (endOfBatch || batchMap.size() >= eventManager.eventSizeInRequest)) {
+                slot.batch = new ArrayList<>(batchMap.values());
+                batchMap.clear();
+            }
+        }
+    }
+
+    protected class DispatchHandler implements EventHandler<EventSlot> {
+        @Override
+        public void onEvent(final EventSlot slot, final long sequence, final boolean endOfBatch) {
+            final List<Event> batch = slot.batch;
+            slot.event = null;
+            slot.batch = null;
+            if (batch != null) {
+                try {
+                    eventManager.dispatch(batch);
+                } catch (final Exception e) {
+                    logger.warn("Failed to dispatch " + batch.size() + " events.", e);
+                }
+            }
+        }
+    }
+
+    protected static class PipelineThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "EventPipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventSpiller keeps events that overflow the event queue in an
+ * {@link EventLog}, and hands them back in the order they were spilled.
+ *
+ * A spilled event may still be held by another log, such as the journal.
+ * It is handed to the written handler, to be committed there, only after
+ * the spill file holding it is synced.
+ */
+public class EventSpiller {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventSpiller.class);
+
+    private static final String FILE_PREFIX = "spill-";
+
+    private static final String OLD_FILE_PREFIX = "evsp-";
+
+    protected final EventLog eventLog;
+
+    protected final int chunkSize;
+
+    protected List<Event> spillBuffer = new ArrayList<>();
+
+    protected Consumer<List<Event>> writtenHandler;
+
+    public EventSpiller(final String spillDirectory, final int chunkSize) {
+        this(spillDirectory, chunkSize, false);
+    }
+
+    public EventSpiller(final String spillDirectory, final int chunkSize, final boolean compressed) {
+        this.chunkSize = chunkSize;
+        // synced only when a written event is held by another log
+        eventLog = new EventLog(spillDirectory, FILE_PREFIX, 64L * 1024 * 1024, -1);
+        eventLog.setCompressed(compressed);
+        // the lanes and the merger still see where a restored event came from
+        eventLog.setSourceKept(true);
+        eventLog.importFiles(OLD_FILE_PREFIX);
+    }
+
+    /**
+     * Sets a handler called with the events written to the spill file.
+     */
+    public void setWrittenHandler(final Consumer<List<Event>> writtenHandler) {
+        this.writtenHandler = writtenHandler;
+    }
+
+    public synchronized boolean isEmpty() {
+        return !eventLog.hasNext() && spillBuffer.isEmpty();
+    }
+
+    public synchronized void spill(final Event event) {
+        spillBuffer.add(event);
+        if (spillBuffer.size() >= chunkSize) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Returns the oldest chunk of spilled events, or an empty list.
+     */
+    public synchronized List<Event> restore() {
+        final List<Event> events = eventLog.next();
+        if (events != null) {
+            if (!events.isEmpty()) {
+                eventLog.commit(events.get(0).getLogOffset());
+            }
+            for (final Event event : events) {
+                event.setEventLog(null);
+                event.setLogOffset(-1);
+            }
+            return events;
+        }
+
+        if (spillBuffer.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Event> bufferedEvents = spillBuffer;
+        spillBuffer = new ArrayList<>();
+        return bufferedEvents;
+    }
+
+    public synchronized void close() {
+        eventLog.close();
+    }
+
+    protected void writeBuffer() {
+        try {
+            eventLog.append(spillBuffer);
+        } catch (final Exception e) {
+            // keep the events in memory rather than losing them
+            logger.warn("Failed to write spilled events.", e);
+            return;
+        }
+        final List<Event> writtenEvents = spillBuffer;
+        spillBuffer = new ArrayList<>();
+        if (writtenHandler == null) {
+            return;
+        }
+        for (final Event event : writtenEvents) {
+            if (event.getEventLog() != null) {
+                if (!eventLog.sync()) {
+                    // the other log keeps the events until they are restored and settled
+                    return;
+                }
+                break;
+            }
+        }
+        writtenHandler.accept(writtenEvents);
+    }
+}
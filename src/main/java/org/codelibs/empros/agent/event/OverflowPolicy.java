@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+
+/**
+ * OverflowPolicy decides what EventManager does with an event when the
+ * bounded event queue is full.
+ */
+public enum OverflowPolicy {
+    BLOCK, DROP_OLDEST, DROP_NEWEST, SPILL;
+
+    public static OverflowPolicy of(final String name) {
+        switch (name) {
+            case "dropOldest":
+                return DROP_OLDEST;
+            case "dropNewest":
+                return DROP_NEWEST;
+            case "spill":
+                return SPILL;
+            case "block":
+                return BLOCK;
+            default:
+                throw new EmprosSystemException("unknown overflow policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.codelibs.empros.agent.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PartitionedDispatcher splits batches into lanes by the event key and runs
+ * one batch at a time per lane, so events for the same key reach the
+ * batch handler in the order they were dispatched.
+ */
+public class PartitionedDispatcher {
+    private static final Logger logger = LoggerFactory
+            .getLogger(PartitionedDispatcher.class);
+
+    protected final Consumer<List<Event>> batchHandler;
+
+    protected final Lane[] lanes;
+
+    protected final AtomicBoolean running = new AtomicBoolean(false);
+
+    protected final boolean virtualThreads;
+
+    public PartitionedDispatcher(final Consumer<List<Event>> batchHandler, final int laneSize, final int laneQueueSize,
+                                 final boolean virtualThreads) {
+        this.batchHandler = batchHandler;
+        this.virtualThreads = virtualThreads;
+        lanes = new Lane[laneSize];
+        for (int i = 0; i < laneSize; i++) {
+            lanes[i] = new Lane(i, laneQueueSize);
+        }
+    }
+
+    public void start() {
+        if (running.getAndSet(true)) {
+            return;
+        }
+        final ThreadFactory threadFactory = ThreadUtil.newThreadFactory("DispatchLane", virtualThreads, false);
+        for (final Lane lane : lanes) {
+            threadFactory.newThread(lane).start();
+        }
+    }
+
+    public void stop() {
+        running.set(false);
+    }
+
+    public void dispatch(final List<Event> eventList) {
+        final List<List<Event>> partitions = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (final Event event : eventList) {
+            partitions.get(getLaneIndex(event)).add(event);
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < lanes.length; i++) {
+            final List<Event> partition = partitions.get(i);
+            while (!partition.isEmpty()) {
+                try {
+                    lanes[i].batchQueue.put(partition);
+                    break;
+                } catch (final InterruptedException e) {
+                    // keep the events and the order of the lane
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected int getLaneIndex(final Event event) {
+        // Event#hashCode is the hash of the event key, such as a file path
+        return Math.floorMod(event.hashCode(), lanes.length);
+    }
+
+    protected class Lane implements Runnable {
+        protected final int index;
+
+        protected final BlockingQueue<List<Event>> batchQueue;
+
+        public Lane(final int index, final int laneQueueSize) {
+            this.index = index;
+            batchQueue = new ArrayBlockingQueue<>(laneQueueSize);
+        }
+
+        @Override
+        public void run() {
+            while (running.get() || !batchQueue.isEmpty()) {
+                try {
+                    final List<Event> batch = batchQueue.poll(1, TimeUnit.SECONDS);
+                    if (batch != null) {
+                        batchHandler.accept(batch);
+                    }
+                } catch (final InterruptedException e) {
+                    // ignore
+                } catch (final Exception e) {
+                    logger.warn("Failed to execute a batch on lane " + index, e);
+                }
+            }
+        }
+    }
+}
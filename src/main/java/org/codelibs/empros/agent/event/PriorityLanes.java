@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+
+/**
+ * PriorityLanes assigns events to weighted lanes by their kind or source,
+ * e.g. "delete:8,watcher:4,scanner:1". Lanes are matched in order and
+ * unmatched events go to the last lane.
+ */
+public class PriorityLanes {
+
+    protected final String[] names;
+
+    protected final int[] weights;
+
+    public PriorityLanes(final String lanes) {
+        final List<String> nameList = new ArrayList<>();
+        final List<Integer> weightList = new ArrayList<>();
+        for (final String lane : lanes.split(",")) {
+            if (lane.trim().isEmpty()) {
+                continue;
+            }
+            final String[] values = lane.split(":");
+            try {
+                final int weight = values.length > 1 ? Integer.parseInt(values[1].trim()) : 1;
+                if (weight <= 0) {
+                    throw new EmprosSystemException("A weight of a priority lane must be positive: " + lane);
+                }
+                nameList.add(values[0].trim());
+                weightList.add(weight);
+            } catch (final NumberFormatException e) {
+                throw new EmprosSystemException("Invalid priority lane: " + lane, e);
+            }
+        }
+        if (nameList.isEmpty()) {
+            throw new EmprosSystemException("No priority lane: " + lanes);
+        }
+        names = nameList.toArray(new String[nameList.size()]);
+        weights = new int[weightList.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weightList.get(i);
+        }
+    }
+
+    public int laneOf(final Event event) {
+        final Object kind = event.get(FileWatchTask.KIND);
+        final String source = event.getSource();
+        for (int i = 0; i < names.length - 1; i++) {
+            if (names[i].equals(kind) || names[i].equals(source)) {
+                return i;
+            }
+        }
+        return names.length - 1;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(final int lane) {
+        return names[lane];
+    }
+
+    public int getWeight(final int lane) {
+        return weights[lane];
+    }
+}
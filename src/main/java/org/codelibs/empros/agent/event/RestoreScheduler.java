@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RestoreScheduler replays backed-up events on a thread of its own. It runs
+ * only when the operation comes back from failing or reports that it is
+ * restored, keeps at most the max restored events in memory and replays them
+ * no faster than the restore rate, so live events are not starved.
+ */
+public class RestoreScheduler {
+    private static final Logger logger = LoggerFactory
+            .getLogger(RestoreScheduler.class);
+
+    protected final EventLog eventLog;
+
+    protected final Consumer<List<Event>> restoreHandler;
+
+    protected final int maxRestoredEvents;
+
+    protected final long restoreRate;
+
+    protected final Object lock = new Object();
+
+    // restored events not settled yet
+    protected final AtomicLong restoredCount = new AtomicLong();
+
+    protected final AtomicLong totalRestoredCount = new AtomicLong();
+
+    protected volatile boolean available = false;
+
+    protected volatile boolean backupPending;
+
+    protected boolean requested = false;
+
+    protected RestoreThread restoreThread;
+
+    /**
+     * @param restoreRate max restored events per second, 0 for no limit
+     */
+    public RestoreScheduler(final EventLog eventLog, final Consumer<List<Event>> restoreHandler,
+                            final int maxRestoredEvents, final long restoreRate) {
+        this.eventLog = eventLog;
+        this.restoreHandler = restoreHandler;
+        this.maxRestoredEvents = Math.max(maxRestoredEvents, 1);
+        this.restoreRate = restoreRate;
+        backupPending = eventLog.hasNext();
+    }
+
+    public void start() {
+        restoreThread = new RestoreThread();
+        restoreThread.setDaemon(true);
+        restoreThread.start();
+    }
+
+    public void stop() {
+        if (restoreThread != null) {
+            restoreThread.shutdown = true;
+            restoreThread.interrupt();
+        }
+    }
+
+    /**
+     * Called when a batch is sent. Only the first success after a failure
+     * starts a restore.
+     */
+    public void onSuccess() {
+        if (!available) {
+            available = true;
+            request();
+        }
+    }
+
+    /**
+     * Called when the operation reports that its destination is back.
+     */
+    public void onRestored() {
+        available = true;
+        request();
+    }
+
+    /**
+     * Called when a batch has failed and is backed up.
+     */
+    public void onBackedUp() {
+        available = false;
+        backupPending = true;
+    }
+
+    /**
+     * Called when restored events are sent, backed up again or dropped.
+     */
+    public void onSettled(final int eventCount) {
+        if (restoredCount.addAndGet(-eventCount) < maxRestoredEvents && available && backupPending) {
+            request();
+        }
+    }
+
+    public long getRestoredCount() {
+        return restoredCount.get();
+    }
+
+    public long getTotalRestoredCount() {
+        return totalRestoredCount.get();
+    }
+
+    public boolean isBackupPending() {
+        return backupPending;
+    }
+
+    protected void request() {
+        if (!backupPending) {
+            return;
+        }
+        synchronized (lock) {
+            requested = true;
+            lock.notifyAll();
+        }
+    }
+
+    protected void awaitRequest() throws InterruptedException {
+        synchronized (lock) {
+            while (!requested) {
+                lock.wait();
+            }
+            requested = false;
+        }
+    }
+
+    // reads records until the restored events in memory reach the limit
+    protected int restore() throws InterruptedException {
+        int restoredNum = 0;
+        long nextTime = System.nanoTime();
+        List<Event> restoreEventList;
+        while (available && restoredCount.get() < maxRestoredEvents) {
+            restoreEventList = eventLog.next();
+            if (restoreEventList == null) {
+                backupPending = false;
+                // a batch may have been backed up in the meantime
+                if (eventLog.hasNext()) {
+                    backupPending = true;
+                    continue;
+                }
+                break;
+            }
+            if (logger.isDebugEnabled()) {
+                for (final Event event : restoreEventList) {
+                    final StringBuilder logBuffer = new StringBuilder("Restored event-> ");
+                    for (final Map.Entry<String, Object> entry : event.entrySet()) {
+                        logBuffer.append(entry.getKey());
+                        logBuffer.append(":");
+                        logBuffer.append(entry.getValue().toString());
+                        logBuffer.append(" ");
+                    }
+                    logger.debug(logBuffer.toString());
+                }
+            }
+            restoredCount.addAndGet(restoreEventList.size());
+            totalRestoredCount.addAndGet(restoreEventList.size());
+            restoreHandler.accept(restoreEventList);
+            restoredNum += restoreEventList.size();
+            if (restoreRate > 0) {
+                nextTime += TimeUnit.SECONDS.toNanos(restoreEventList.size()) / restoreRate;
+                final long waitTime = nextTime - System.nanoTime();
+                if (waitTime > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitTime);
+                }
+            }
+        }
+        return restoredNum;
+    }
+
+    protected class RestoreThread extends Thread {
+        protected volatile boolean shutdown = false;
+
+        public RestoreThread() {
+            super("EventRestore");
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    awaitRequest();
+                    final int restoredNum = restore();
+                    if (restoredNum > 0 && logger.isInfoEnabled()) {
+                        logger.info("Restored Event Num: {}", restoredNum);
+                    }
+                } catch (final InterruptedException e) {
+                    // stopped
+                } catch (final Exception e) {
+                    logger.warn("Failed to restore events.", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation;
+
+import org.codelibs.empros.agent.util.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CircuitBreaker stops an operation from sending while its destination is
+ * failing. It opens after failureThreshold consecutive failed requests, and
+ * once openTimeout has passed lets a single request through as a probe.
+ * The probe closes the circuit when it succeeds, or opens it again for twice
+ * as long, up to maxOpenTimeout, when it fails.
+ *
+ * A health check of the operation may trip the circuit when it fails, and
+ * half-open it when it passes, so the next request probes the destination.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected final String name;
+
+    protected final int failureThreshold;
+
+    protected final long openTimeout;
+
+    protected final long maxOpenTimeout;
+
+    protected State state = State.CLOSED;
+
+    protected int failureCount = 0;
+
+    protected long openedTime;
+
+    protected long currentOpenTimeout;
+
+    protected boolean probing = false;
+
+    public CircuitBreaker(final String name, final int failureThreshold, final long openTimeout,
+                          final long maxOpenTimeout) {
+        this.name = name;
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openTimeout = openTimeout;
+        this.maxOpenTimeout = Math.max(maxOpenTimeout, openTimeout);
+        currentOpenTimeout = openTimeout;
+    }
+
+    /**
+     * Creates a circuit breaker from circuitFailureThreshold,
+     * circuitOpenTimeout and maxCircuitOpenTimeout.
+     */
+    public static CircuitBreaker fromProperties(final String name, final String propertiesPath) {
+        return new CircuitBreaker(name,
+                PropertiesUtil.getAsInt(propertiesPath, "circuitFailureThreshold", 5),
+                PropertiesUtil.getAsLong(propertiesPath, "circuitOpenTimeout", 5 * 1000L),
+                PropertiesUtil.getAsLong(propertiesPath, "maxCircuitOpenTimeout", 60 * 1000L));
+    }
+
+    /**
+     * Returns true if a request may be sent now. In the half-open state only
+     * the probe is allowed until its outcome is reported.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedTime < currentOpenTimeout) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+                if (logger.isInfoEnabled()) {
+                    logger.info("Circuit of {} is half-open.", name);
+                }
+                return true;
+            default:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        failureCount = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            probing = false;
+            currentOpenTimeout = openTimeout;
+            if (logger.isInfoEnabled()) {
+                logger.info("Circuit of {} is closed.", name);
+            }
+        }
+    }
+
+    public synchronized void onFailure() {
+        switch (state) {
+            case CLOSED:
+                if (++failureCount >= failureThreshold) {
+                    open(openTimeout);
+                }
+                break;
+            case HALF_OPEN:
+                open(Math.min(currentOpenTimeout * 2, maxOpenTimeout));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Opens the circuit whatever its state, e.g. when a health check fails.
+     */
+    public synchronized void trip() {
+        if (state != State.OPEN) {
+            open(currentOpenTimeout);
+        }
+    }
+
+    /**
+     * Lets the next request probe an open circuit without waiting for the
+     * rest of the open timeout, e.g. when a health check succeeds.
+     */
+    public synchronized void halfOpen() {
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+            probing = false;
+            if (logger.isInfoEnabled()) {
+                logger.info("Circuit of {} is half-open.", name);
+            }
+        }
+    }
+
+    protected void open(final long timeout) {
+        state = State.OPEN;
+        probing = false;
+        failureCount = 0;
+        openedTime = System.currentTimeMillis();
+        currentOpenTimeout = timeout;
+        logger.warn("Circuit of {} is open for {} ms.", name, timeout);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return state == State.OPEN;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.codelibs.empros.agent.util.PropertiesUtil;
+
+/**
+ * RetryPolicy spaces retries by exponential backoff with full jitter, and
+ * bounds them by a retry budget: each first attempt deposits budgetRatio
+ * tokens, up to maxBudget, and each retry withdraws one. While the budget
+ * is spent, failed requests are not retried, so retries add at most
+ * budgetRatio extra load to a struggling destination.
+ */
+public class RetryPolicy {
+
+    protected final int maxRetryCount;
+
+    protected final long baseInterval;
+
+    protected final long maxInterval;
+
+    protected final double budgetRatio;
+
+    protected final double maxBudget;
+
+    protected double budget;
+
+    public RetryPolicy(final int maxRetryCount, final long baseInterval, final long maxInterval,
+                       final double budgetRatio, final double maxBudget) {
+        this.maxRetryCount = maxRetryCount;
+        this.baseInterval = Math.max(baseInterval, 1L);
+        this.maxInterval = Math.max(maxInterval, this.baseInterval);
+        this.budgetRatio = budgetRatio;
+        this.maxBudget = maxBudget;
+        budget = maxBudget;
+    }
+
+    /**
+     * Creates a policy from maxRetryCount, requestInterval, maxRetryInterval,
+     * retryBudgetRatio and maxRetryBudget.
+     */
+    public static RetryPolicy fromProperties(final String propertiesPath) {
+        return new RetryPolicy(PropertiesUtil.getAsInt(propertiesPath, "maxRetryCount", 5),
+                PropertiesUtil.getAsLong(propertiesPath, "requestInterval", 100L),
+                PropertiesUtil.getAsLong(propertiesPath, "maxRetryInterval", 10 * 1000L),
+                Double.parseDouble(PropertiesUtil.getAsString(propertiesPath, "retryBudgetRatio", "0.2")),
+                PropertiesUtil.getAsInt(propertiesPath, "maxRetryBudget", 20));
+    }
+
+    /**
+     * Called for each first attempt of a request.
+     */
+    public synchronized void onRequest() {
+        budget = Math.min(budget + budgetRatio, maxBudget);
+    }
+
+    /**
+     * Returns true and withdraws from the budget if the request that failed
+     * retryCount retries may be retried.
+     */
+    public synchronized boolean tryRetry(final int retryCount) {
+        if (retryCount >= maxRetryCount || budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * Returns a random delay between 0 and the backoff of the given retry.
+     */
+    public long getInterval(final int retryCount) {
+        final long interval = retryCount < 30 ? Math.min(baseInterval << retryCount, maxInterval) : maxInterval;
+        return ThreadLocalRandom.current().nextLong(interval + 1);
+    }
+
+    public void sleep(final int retryCount) {
+        try {
+            Thread.sleep(getInterval(retryCount));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized double getBudget() {
+        return budget;
+    }
+}
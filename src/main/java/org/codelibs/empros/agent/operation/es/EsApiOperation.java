@@ -21,8 +21,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -31,8 +31,11 @@ import org.codelibs.elasticsearch.client.HttpClient;
 import org.codelibs.empros.agent.event.Event;
 import org.codelibs.empros.agent.exception.EmprosSystemException;
 import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.operation.CircuitBreaker;
 import org.codelibs.empros.agent.operation.Operation;
+import org.codelibs.empros.agent.operation.RetryPolicy;
 import org.codelibs.empros.agent.util.PropertiesUtil;
+import org.codelibs.empros.agent.util.ThreadUtil;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -57,17 +60,19 @@ public class EsApiOperation implements Operation {
 
     private final int requestInterval;
 
+    private final RetryPolicy retryPolicy;
+
+    private final CircuitBreaker circuitBreaker;
+
     private final Client client;
 
     private final List<OperationListener> listenerList = new ArrayList<>();
 
-    private final ApiMonitor apiMonitor;
-
-    private final Timer apiMonitorTimer;
+    private final ScheduledExecutorService apiMonitorExecutor;
 
     private final long apiMonitorInterval;
 
-    private final AtomicBoolean apiAvailable = new AtomicBoolean(false);
+    private final AtomicBoolean apiReachable = new AtomicBoolean(false);
 
     public EsApiOperation() {
         esHosts = PropertiesUtil.getAsString(EMPROSAPI_PROPERTIES, "esHosts", "");
@@ -81,14 +86,18 @@ public class EsApiOperation implements Operation {
 
         requestInterval = PropertiesUtil.getAsInt(EMPROSAPI_PROPERTIES,
                 "requestInterval", 100);
+        retryPolicy = RetryPolicy.fromProperties(EMPROSAPI_PROPERTIES);
+        circuitBreaker = CircuitBreaker.fromProperties(esHosts, EMPROSAPI_PROPERTIES);
         apiMonitorInterval = PropertiesUtil.getAsLong(EMPROSAPI_PROPERTIES,
                 "apiMonitorInterval", 10 * 1000L);
 
         client = createHttpClient(esHosts);
 
-        apiMonitor = new ApiMonitor();
-        apiMonitorTimer = new Timer();
-        apiMonitorTimer.schedule(apiMonitor, 0, apiMonitorInterval);
+        final boolean virtualThreads = Boolean.parseBoolean(PropertiesUtil.getAsString(
+                EMPROSAPI_PROPERTIES, "virtualThreads", "false"));
+        apiMonitorExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newThreadFactory("EsApiMonitor", virtualThreads, true));
+        apiMonitorExecutor.scheduleWithFixedDelay(new ApiMonitor(), 0, apiMonitorInterval, TimeUnit.MILLISECONDS);
     }
 
     protected Client createHttpClient(final String host) {
@@ -99,7 +108,7 @@ public class EsApiOperation implements Operation {
 
     @Override
     public void destroy() {
-        apiMonitorTimer.cancel();
+        apiMonitorExecutor.shutdownNow();
         try {
             client.close();
         } catch (final ElasticsearchException e) {
@@ -114,11 +123,44 @@ public class EsApiOperation implements Operation {
 
     @Override
     public void excute(final List<Event> eventList) {
-        if (!apiAvailable.get()) {
+        if (!circuitBreaker.allowRequest()) {
             callbackResultError(eventList);
             return;
         }
 
+        final boolean isSuccess = send(eventList);
+
+        sleep();
+
+        if (isSuccess) {
+            callbackResultSuccess(eventList);
+        } else {
+            callbackResultError(eventList);
+        }
+    }
+
+    /**
+     * Indexes the events by a bulk request, retrying while the retry policy
+     * allows it and the circuit stays closed.
+     */
+    protected boolean send(final List<Event> eventList) {
+        retryPolicy.onRequest();
+        int retryCount = 0;
+        while (true) {
+            if (bulk(eventList)) {
+                circuitBreaker.onSuccess();
+                return true;
+            }
+            circuitBreaker.onFailure();
+            if (circuitBreaker.isOpen() || !retryPolicy.tryRetry(retryCount)) {
+                return false;
+            }
+            retryPolicy.sleep(retryCount);
+            retryCount++;
+        }
+    }
+
+    protected boolean bulk(final List<Event> eventList) {
         boolean isSuccess = false;
 
         try {
@@ -150,14 +192,7 @@ public class EsApiOperation implements Operation {
             logger.warn("Could not put: {}:{}", esHosts, e);
             isSuccess = false;
         }
-
-        sleep();
-
-        if (isSuccess) {
-            callbackResultSuccess(eventList);
-        } else {
-            callbackResultError(eventList);
-        }
+        return isSuccess;
     }
 
     protected void sleep() {
@@ -239,14 +274,15 @@ public class EsApiOperation implements Operation {
         }
     }
 
-    protected class ApiMonitor extends TimerTask {
+    protected class ApiMonitor implements Runnable {
         @Override
         public void run() {
             logger.info("monitoring");
-            boolean before = apiAvailable.get();
+            boolean before = apiReachable.get();
             boolean after = isReachable();
-            apiAvailable.set(after);
+            apiReachable.set(after);
             if (!after) {
+                circuitBreaker.trip();
                 if (after != before) {
                     if (logger.isInfoEnabled()) {
                         logger.info("Api Monitoring. Server is not available. {}", esHosts);
@@ -256,17 +292,25 @@ public class EsApiOperation implements Operation {
                 if (logger.isInfoEnabled()) {
                     logger.info("Api Monitoring. Server was restored. {}", esHosts);
                 }
+                circuitBreaker.halfOpen();
                 callbackResoted();
             }
 
         }
 
         private boolean isReachable() {
-            if (!client.prepareGet().setIndex(esIndex).execute().actionGet().isExists()) {
-                logger.warn("Failed to monitor api. {}", esHosts);
-                return false;
+            try {
+                if (client.prepareGet().setIndex(esIndex).execute().actionGet().isExists()) {
+                    return true;
+                }
+            } catch (final Exception e) {
+                // a scheduled task stops repeating once it throws
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to access {}", esHosts, e);
+                }
             }
-            return true;
+            logger.warn("Failed to monitor api. {}", esHosts);
+            return false;
         }
     }
 
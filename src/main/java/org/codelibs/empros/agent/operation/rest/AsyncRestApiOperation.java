@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.operation.CircuitBreaker;
+import org.codelibs.empros.agent.operation.Operation;
+import org.codelibs.empros.agent.operation.RetryPolicy;
+import org.codelibs.empros.agent.util.PropertiesUtil;
+import org.codelibs.empros.agent.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AsyncRestApiOperation posts events like {@link RestApiOperation}, but on
+ * the JDK HttpClient with non-blocking requests. HTTP/2 is used when the
+ * server supports it, so the chunks of a batch share a connection, and the
+ * request bodies are encoded as they are sent. The requests in flight are
+ * bounded by maxInFlightRequests.
+ *
+ * excute returns once every chunk of the batch has completed and the
+ * listeners have been called, so the batches in flight and the per-key
+ * order of partitioned dispatch are kept as with the other operations.
+ */
+public class AsyncRestApiOperation implements Operation {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRestApiOperation.class);
+
+    private static final String EMPROSAPI_PROPERTIES = "emprosapi.properties";
+
+    private final URI uri;
+
+    private final int eventCapacity;
+
+    private final RetryPolicy retryPolicy;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final Duration requestTimeout;
+
+    private final String requestCompression;
+
+    private final int compressionLevel;
+
+    private final long compressionThreshold;
+
+    private final Semaphore inFlightSemaphore;
+
+    private final ExecutorService httpExecutor;
+
+    private final HttpClient httpClient;
+
+    private final List<OperationListener> listenerList = new ArrayList<>();
+
+    private final ScheduledExecutorService monitorExecutor;
+
+    private final AtomicBoolean apiReachable = new AtomicBoolean(false);
+
+    private volatile boolean destroyed = false;
+
+    public AsyncRestApiOperation() {
+        this(EMPROSAPI_PROPERTIES);
+    }
+
+    public AsyncRestApiOperation(final String propertiesPath) {
+        final String url = PropertiesUtil.getAsString(propertiesPath, "emprosUrl",
+                null);
+
+        if (StringUtil.isBlank(url)) {
+            throw new EmprosSystemException("emprosUrl is empty.");
+        }
+        uri = URI.create(url);
+
+        eventCapacity = PropertiesUtil.getAsInt(propertiesPath,
+                "eventCapacity", 100);
+        retryPolicy = RetryPolicy.fromProperties(propertiesPath);
+        circuitBreaker = CircuitBreaker.fromProperties(url, propertiesPath);
+        requestTimeout = Duration.ofMillis(PropertiesUtil.getAsLong(propertiesPath,
+                "requestTimeout", 10 * 1000L));
+        final String compression = PropertiesUtil.getAsString(propertiesPath,
+                "requestCompression", "none");
+        if (CompressedEntity.GZIP.equals(compression) || CompressedEntity.DEFLATE.equals(compression)) {
+            requestCompression = compression;
+        } else {
+            if (!"none".equals(compression)) {
+                logger.warn("Unknown request compression: {}", compression);
+            }
+            requestCompression = null;
+        }
+        compressionLevel = PropertiesUtil.getAsInt(propertiesPath,
+                "compressionLevel", 6);
+        compressionThreshold = PropertiesUtil.getAsLong(propertiesPath,
+                "compressionThreshold", 1024L);
+        inFlightSemaphore = new Semaphore(PropertiesUtil.getAsInt(propertiesPath,
+                "maxInFlightRequests", 100));
+        final long apiMonitorInterval = PropertiesUtil.getAsLong(propertiesPath,
+                "apiMonitorInterval", 1 * 60 * 1000L);
+
+        // runs the completion stages, the I/O is done by the selector thread of the client
+        httpExecutor = Executors.newFixedThreadPool(PropertiesUtil.getAsInt(propertiesPath,
+                "httpThreads", 2), ThreadUtil.newThreadFactory("AsyncRestApi", false, true));
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(requestTimeout)
+                .executor(httpExecutor)
+                .build();
+
+        monitorExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newThreadFactory("AsyncRestApiMonitor", false, true));
+        monitorExecutor.scheduleWithFixedDelay(new ApiMonitor(), 0, apiMonitorInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        monitorExecutor.shutdownNow();
+        // aborts the requests in flight, so excute returns with the chunks failed
+        httpClient.shutdownNow();
+        httpClient.close();
+        httpExecutor.shutdown();
+    }
+
+    @Override
+    public void addOperationListener(final OperationListener listener) {
+        listenerList.add(listener);
+    }
+
+    @Override
+    public void excute(final List<Event> eventList) {
+        if (!circuitBreaker.allowRequest()) {
+            callbackResultError(eventList);
+            return;
+        }
+
+        final List<List<Event>> chunkList = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> futureList = new ArrayList<>();
+        for (int start = 0; start < eventList.size(); start += eventCapacity) {
+            final List<Event> chunk = eventList.subList(start, Math.min(start + eventCapacity, eventList.size()));
+            chunkList.add(chunk);
+            futureList.add(sendChunk(chunk).exceptionally(t -> {
+                logger.warn("Failed to send " + chunk.size() + " events.", t);
+                return false;
+            }));
+        }
+
+        final CompletableFuture<Void> batchFuture = CompletableFuture
+                .allOf(futureList.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                    final List<Event> succeededList = new ArrayList<>();
+                    final List<Event> failedList = new ArrayList<>();
+                    for (int i = 0; i < chunkList.size(); i++) {
+                        if (Boolean.TRUE.equals(futureList.get(i).getNow(false))) {
+                            succeededList.addAll(chunkList.get(i));
+                        } else {
+                            failedList.addAll(chunkList.get(i));
+                        }
+                    }
+                    if (!succeededList.isEmpty()) {
+                        callbackResultSuccess(succeededList);
+                    }
+                    if (!failedList.isEmpty()) {
+                        callbackResultError(failedList);
+                    }
+                });
+        batchFuture.join();
+    }
+
+    /**
+     * Sends a chunk holding one of maxInFlightRequests permits until its
+     * last retry completes. Only the calling thread waits for a permit,
+     * never a completion stage.
+     */
+    protected CompletableFuture<Boolean> sendChunk(final List<Event> eventList) {
+        final HttpRequest request;
+        try {
+            request = createRequest(eventList);
+        } catch (final Exception e) {
+            logger.warn("Failed to create a request for " + eventList.size() + " events.", e);
+            return CompletableFuture.completedFuture(false);
+        }
+        try {
+            inFlightSemaphore.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(false);
+        }
+        retryPolicy.onRequest();
+        final CompletableFuture<Boolean> future;
+        try {
+            future = send(request, 0);
+        } catch (final RuntimeException e) {
+            inFlightSemaphore.release();
+            throw e;
+        }
+        return future.whenComplete((isSuccess, t) -> inFlightSemaphore.release());
+    }
+
+    /**
+     * Posts the request, and retries while the retry policy allows it and
+     * the circuit stays closed.
+     */
+    protected CompletableFuture<Boolean> send(final HttpRequest request, final int retryCount) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, t) -> {
+                    if (t != null) {
+                        logger.warn("Could not access: " + uri + " retry: " + retryCount, t);
+                    } else {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("response: {}", response);
+                        }
+                        if (response.statusCode() == HttpStatus.SC_OK) {
+                            circuitBreaker.onSuccess();
+                            return true;
+                        }
+                        logger.warn("HTTPRequest error. status code: {}, retry: {}, url: {}, content: {}",
+                                response.statusCode(), retryCount, uri, response.body());
+                    }
+                    circuitBreaker.onFailure();
+                    return false;
+                })
+                .thenCompose(isSuccess -> {
+                    if (isSuccess || destroyed || circuitBreaker.isOpen() || !retryPolicy.tryRetry(retryCount)) {
+                        return CompletableFuture.completedFuture(isSuccess);
+                    }
+                    // retried without holding a thread, and not on httpExecutor which may be shut down by then
+                    return CompletableFuture.supplyAsync(() -> retryCount + 1,
+                            CompletableFuture.delayedExecutor(retryPolicy.getInterval(retryCount),
+                                    TimeUnit.MILLISECONDS))
+                            .thenCompose(count -> send(request, count));
+                });
+    }
+
+    /**
+     * Creates a request whose body is encoded, and compressed if needed, as
+     * the client reads it, so no body is held in memory.
+     */
+    protected HttpRequest createRequest(final List<Event> eventList) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json");
+        final HttpEntity jsonEntity = new EventJsonEntity(eventList);
+        final HttpEntity entity;
+        if (requestCompression != null && jsonEntity.getContentLength() >= compressionThreshold) {
+            entity = new CompressedEntity(jsonEntity, requestCompression, compressionLevel);
+            builder.header("Content-Encoding", requestCompression);
+        } else {
+            entity = jsonEntity;
+        }
+        // called again for each retry
+        return builder.POST(HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return entity.getContent();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        })).build();
+    }
+
+    protected class ApiMonitor implements Runnable {
+        @Override
+        public void run() {
+            final boolean before = apiReachable.get();
+            final boolean after = isReachable();
+            apiReachable.set(after);
+            if (!after) {
+                circuitBreaker.trip();
+            }
+            if (after == before) {
+                return;
+            }
+            if (!after) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Api Monitoring. Server is not available. {}", uri);
+                }
+            } else {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Api Monitoring. Server was restored. {}", uri);
+                }
+                circuitBreaker.halfOpen();
+                callbackRestored();
+            }
+        }
+
+        private boolean isReachable() {
+            try {
+                final HttpRequest request = HttpRequest.newBuilder(uri)
+                        .timeout(requestTimeout)
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .build();
+                httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                return true;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final Exception e) {
+                logger.warn("Failed to monitor api. {}", uri);
+            }
+            return false;
+        }
+    }
+
+    private void callbackResultSuccess(final List<Event> eventList) {
+        for (final OperationListener listener : listenerList) {
+            listener.successHandler(eventList);
+        }
+    }
+
+    private void callbackResultError(final List<Event> eventList) {
+        for (final OperationListener listener : listenerList) {
+            listener.errorHandler(eventList);
+        }
+    }
+
+    private void callbackRestored() {
+        for (final OperationListener listener : listenerList) {
+            listener.restoredHandler();
+        }
+    }
+}
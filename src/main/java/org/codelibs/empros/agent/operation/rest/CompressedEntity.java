@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * CompressedEntity compresses the wrapped entity with gzip or deflate while
+ * it is written, so the compressed body is never held in memory.
+ */
+public class CompressedEntity extends HttpEntityWrapper {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    protected final String encoding;
+
+    protected final int level;
+
+    public CompressedEntity(final HttpEntity entity, final String encoding, final int level) {
+        super(entity);
+        if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+        this.encoding = encoding;
+        this.level = level;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", encoding);
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    /**
+     * Returns a stream that compresses the content of the wrapped entity as
+     * it is read.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final InputStream content = wrappedEntity.getContent();
+        if (!GZIP.equals(encoding)) {
+            return new EndingDeflaterInputStream(content, new Deflater(level));
+        }
+        final CheckedInputStream checkedStream = new CheckedInputStream(content, new CRC32());
+        final InputStream deflaterStream = new EndingDeflaterInputStream(checkedStream, new Deflater(level, true));
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return index < 3;
+            }
+
+            // the trailer is created once the content has been read up
+            @Override
+            public InputStream nextElement() {
+                switch (index++) {
+                    case 0:
+                        return new ByteArrayInputStream(GZIP_HEADER);
+                    case 1:
+                        return deflaterStream;
+                    case 2:
+                        final long crc = checkedStream.getChecksum().getValue();
+                        final long size = ((EndingDeflaterInputStream) deflaterStream).getBytesRead();
+                        final byte[] trailer = new byte[8];
+                        for (int i = 0; i < 4; i++) {
+                            trailer[i] = (byte) (crc >>> (i * 8));
+                            trailer[i + 4] = (byte) (size >>> (i * 8));
+                        }
+                        return new ByteArrayInputStream(trailer);
+                    default:
+                        throw new NoSuchElementException();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void writeTo(final OutputStream outStream) throws IOException {
+        if (GZIP.equals(encoding)) {
+            final LeveledGZIPOutputStream gzipStream = new LeveledGZIPOutputStream(outStream, level);
+            try {
+                wrappedEntity.writeTo(gzipStream);
+                gzipStream.finish();
+            } finally {
+                gzipStream.end();
+            }
+        } else {
+            final Deflater deflater = new Deflater(level);
+            try {
+                final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outStream, deflater, BUFFER_SIZE);
+                wrappedEntity.writeTo(deflaterStream);
+                deflaterStream.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+        outStream.flush();
+    }
+
+    protected static class EndingDeflaterInputStream extends DeflaterInputStream {
+        private long bytesRead = 0;
+
+        private boolean ended = false;
+
+        EndingDeflaterInputStream(final InputStream in, final Deflater deflater) {
+            super(in, deflater, BUFFER_SIZE);
+        }
+
+        long getBytesRead() {
+            return ended ? bytesRead : def.getBytesRead();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!ended) {
+                    bytesRead = def.getBytesRead();
+                    ended = true;
+                    def.end();
+                }
+            }
+        }
+    }
+
+    // the stream of the connection is not closed here, so the deflater is ended explicitly
+    protected static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(final OutputStream out, final int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.codelibs.empros.agent.event.Event;
+
+/**
+ * EventJsonEntity writes events as a JSON array straight to the output
+ * stream through a small buffer, without building the request body in
+ * memory. Keys and values are escaped like ECMAScript strings and single
+ * quotes are removed from values, so the body is plain ASCII.
+ */
+public class EventJsonEntity extends AbstractHttpEntity {
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    protected final List<Event> eventList;
+
+    protected byte[] buffer;
+
+    protected int position;
+
+    protected OutputStream out;
+
+    protected long count;
+
+    protected long contentLength = -1;
+
+    public EventJsonEntity(final List<Event> eventList) {
+        this.eventList = eventList;
+        contentType = new BasicHeader(HTTP.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Returns the length counted by a pass that encodes without writing.
+     */
+    @Override
+    public long getContentLength() {
+        if (contentLength == -1) {
+            try {
+                contentLength = encode(null);
+            } catch (final IOException e) {
+                // not thrown without an output stream
+                throw new IllegalStateException(e);
+            }
+        }
+        return contentLength;
+    }
+
+    /**
+     * Returns a stream that encodes the events as it is read, about a
+     * buffer at a time.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return new EventJsonInputStream();
+    }
+
+    @Override
+    public void writeTo(final OutputStream outStream) throws IOException {
+        encode(outStream);
+        outStream.flush();
+    }
+
+    // writes to the stream, or only counts the bytes if it is null
+    protected synchronized long encode(final OutputStream outStream) throws IOException {
+        begin(outStream);
+        try {
+            write('[');
+            for (int i = 0; i < eventList.size(); i++) {
+                writeEvent(i);
+            }
+            write(']');
+            flushBuffer();
+            return count;
+        } finally {
+            out = null;
+        }
+    }
+
+    protected void begin(final OutputStream outStream) {
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        out = outStream;
+        position = 0;
+        count = 0;
+    }
+
+    protected void writeEvent(final int index) throws IOException {
+        if (index > 0) {
+            write(',');
+        }
+        write('{');
+        boolean isFirst = true;
+        for (final Map.Entry<String, Object> entry : eventList.get(index).entrySet()) {
+            if (isFirst) {
+                isFirst = false;
+            } else {
+                write(',');
+            }
+            write('"');
+            writeEscaped(entry.getKey(), false);
+            write('"');
+            write(':');
+            write('"');
+            writeValue(entry.getValue());
+            write('"');
+        }
+        write('}');
+    }
+
+    protected void writeValue(final Object value) throws IOException {
+        if (value instanceof Long || value instanceof Integer) {
+            writeLong(((Number) value).longValue());
+        } else {
+            writeEscaped(value.toString(), true);
+        }
+    }
+
+    protected void writeLong(final long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeEscaped(Long.toString(value), true);
+            return;
+        }
+        long v = value;
+        if (v < 0) {
+            write('-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (v / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            write('0' + (int) (v / divisor % 10));
+        }
+    }
+
+    protected void writeEscaped(final CharSequence value, final boolean removeQuote) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\'':
+                    if (!removeQuote) {
+                        write('\\');
+                        write('\'');
+                    }
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    write('\\');
+                    write(c);
+                    break;
+                case '\b':
+                    write('\\');
+                    write('b');
+                    break;
+                case '\n':
+                    write('\\');
+                    write('n');
+                    break;
+                case '\t':
+                    write('\\');
+                    write('t');
+                    break;
+                case '\f':
+                    write('\\');
+                    write('f');
+                    break;
+                case '\r':
+                    write('\\');
+                    write('r');
+                    break;
+                default:
+                    if (c < 32 || c > 0x7f) {
+                        // a supplementary character is written as its surrogate pair
+                        write('\\');
+                        write('u');
+                        write(HEX_DIGITS[c >> 12 & 0xf]);
+                        write(HEX_DIGITS[c >> 8 & 0xf]);
+                        write(HEX_DIGITS[c >> 4 & 0xf]);
+                        write(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        write(c);
+                    }
+                    break;
+            }
+        }
+    }
+
+    protected void write(final int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    protected void flushBuffer() throws IOException {
+        if (out != null) {
+            out.write(buffer, 0, position);
+        }
+        count += position;
+        position = 0;
+    }
+
+    protected class EventJsonInputStream extends InputStream {
+        private final ChunkOutputStream chunk = new ChunkOutputStream();
+
+        // the next event to encode, -1 before the array is opened
+        private int index = -1;
+
+        private int readPosition = 0;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk.getBytes()[readPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, chunk.size() - readPosition);
+            System.arraycopy(chunk.getBytes(), readPosition, b, off, n);
+            readPosition += n;
+            return n;
+        }
+
+        // encodes the next events once the chunk is read up, and returns false at the end
+        private boolean fill() throws IOException {
+            if (readPosition < chunk.size()) {
+                return true;
+            }
+            if (index > eventList.size()) {
+                return false;
+            }
+            chunk.reset();
+            readPosition = 0;
+            synchronized (EventJsonEntity.this) {
+                begin(chunk);
+                try {
+                    if (index == -1) {
+                        write('[');
+                        index = 0;
+                    }
+                    while (index < eventList.size() && count + position < BUFFER_SIZE) {
+                        writeEvent(index++);
+                    }
+                    if (index == eventList.size()) {
+                        write(']');
+                        index++;
+                    }
+                    flushBuffer();
+                } finally {
+                    out = null;
+                }
+            }
+            return chunk.size() > 0;
+        }
+    }
+
+    protected static class ChunkOutputStream extends ByteArrayOutputStream {
+        ChunkOutputStream() {
+            super(BUFFER_SIZE);
+        }
+
+        byte[] getBytes() {
+            return buf;
+        }
+    }
+}
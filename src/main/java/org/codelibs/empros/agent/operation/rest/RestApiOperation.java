@@ -19,14 +19,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -43,7 +48,6 @@ import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
@@ -56,8 +60,11 @@ import org.codelibs.core.lang.StringUtil;
 import org.codelibs.empros.agent.event.Event;
 import org.codelibs.empros.agent.exception.EmprosSystemException;
 import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.operation.CircuitBreaker;
 import org.codelibs.empros.agent.operation.Operation;
+import org.codelibs.empros.agent.operation.RetryPolicy;
 import org.codelibs.empros.agent.util.PropertiesUtil;
+import org.codelibs.empros.agent.util.ThreadUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,43 +80,79 @@ public class RestApiOperation implements Operation {
 
     private final int requestInterval;
 
-    private final int maxRetryCount;
+    private final RetryPolicy retryPolicy;
 
-    private final CloseableHttpClient httpClient;
+    private final CircuitBreaker circuitBreaker;
 
-    private final ConnectionMonitor connectionMonitor;
+    private final CloseableHttpClient httpClient;
 
     private final List<OperationListener> listenerList = new ArrayList<>();
 
-    private final ApiMonitor apiMonitor;
-
-    private final Timer apiMonitorTimer;
+    private final ScheduledExecutorService monitorExecutor;
 
     private final long apiMonitorInterval;
 
-    private final AtomicBoolean apiAvailable = new AtomicBoolean(false);
+    private final AtomicBoolean apiReachable = new AtomicBoolean(false);
+
+    private final String requestCompression;
+
+    private final int compressionLevel;
+
+    private final long compressionThreshold;
+
+    private final int uploadWindow;
+
+    private final ExecutorService uploadExecutor;
 
     public RestApiOperation() {
-        url = PropertiesUtil.getAsString(EMPROSAPI_PROPERTIES, "emprosUrl",
+        this(EMPROSAPI_PROPERTIES);
+    }
+
+    public RestApiOperation(final String propertiesPath) {
+        url = PropertiesUtil.getAsString(propertiesPath, "emprosUrl",
                 null);
 
         if (StringUtil.isBlank(url)) {
             throw new EmprosSystemException("emprosUrl is empty.");
         }
 
-        eventCapacity = PropertiesUtil.getAsInt(EMPROSAPI_PROPERTIES,
+        eventCapacity = PropertiesUtil.getAsInt(propertiesPath,
                 "eventCapacity", 100);
-        requestInterval = PropertiesUtil.getAsInt(EMPROSAPI_PROPERTIES,
+        requestInterval = PropertiesUtil.getAsInt(propertiesPath,
                 "requestInterval", 100);
-        maxRetryCount = PropertiesUtil.getAsInt(EMPROSAPI_PROPERTIES,
-                "maxRetryCount", 5);
-        apiMonitorInterval = PropertiesUtil.getAsLong(EMPROSAPI_PROPERTIES,
+        retryPolicy = RetryPolicy.fromProperties(propertiesPath);
+        circuitBreaker = CircuitBreaker.fromProperties(url, propertiesPath);
+        apiMonitorInterval = PropertiesUtil.getAsLong(propertiesPath,
                 "apiMonitorInterval", 1 * 60 * 1000L);
+        final String compression = PropertiesUtil.getAsString(propertiesPath,
+                "requestCompression", "none");
+        if (CompressedEntity.GZIP.equals(compression) || CompressedEntity.DEFLATE.equals(compression)) {
+            requestCompression = compression;
+        } else {
+            if (!"none".equals(compression)) {
+                logger.warn("Unknown request compression: {}", compression);
+            }
+            requestCompression = null;
+        }
+        compressionLevel = PropertiesUtil.getAsInt(propertiesPath,
+                "compressionLevel", 6);
+        compressionThreshold = PropertiesUtil.getAsLong(propertiesPath,
+                "compressionThreshold", 1024L);
 
         final long connectionCheckInterval = PropertiesUtil.getAsLong(
-                EMPROSAPI_PROPERTIES, "connectionCheckInterval", 5000L);
+                propertiesPath, "connectionCheckInterval", 5000L);
         final long idleConnectionTimeout = PropertiesUtil.getAsLong(
-                EMPROSAPI_PROPERTIES, "idleConnectionTimeout", 60 * 1000L);
+                propertiesPath, "idleConnectionTimeout", 60 * 1000L);
+        final boolean virtualThreads = Boolean.parseBoolean(PropertiesUtil.getAsString(
+                propertiesPath, "virtualThreads", "false"));
+        uploadWindow = PropertiesUtil.getAsInt(propertiesPath,
+                "uploadWindow", 1);
+        if (uploadWindow > 1) {
+            uploadExecutor = Executors.newCachedThreadPool(
+                    ThreadUtil.newThreadFactory("RestApiUpload", virtualThreads, true));
+        } else {
+            uploadExecutor = null;
+        }
 
         final HttpClientBuilder builder = HttpClientBuilder.create();
         final PlainConnectionSocketFactory plainConnectionFactory = new PlainConnectionSocketFactory();
@@ -129,24 +172,25 @@ public class RestApiOperation implements Operation {
 
         builder.setDefaultRequestConfig(requestConfig);
 
-        final HttpClientConnectionManager clientConnectionManager = new PoolingHttpClientConnectionManager(
+        final PoolingHttpClientConnectionManager clientConnectionManager = new PoolingHttpClientConnectionManager(
                 registry, null, null, null,5, TimeUnit.MINUTES);
+        clientConnectionManager.setMaxTotal(PropertiesUtil.getAsInt(
+                propertiesPath, "maxConnections", 20));
+        clientConnectionManager.setDefaultMaxPerRoute(PropertiesUtil.getAsInt(
+                propertiesPath, "maxConnectionsPerRoute", 2));
 
         builder.setConnectionManager(clientConnectionManager);
 
         httpClient = builder.build();
 
-        connectionMonitor = new ConnectionMonitor(clientConnectionManager,
-                connectionCheckInterval, idleConnectionTimeout);
-        connectionMonitor.setDaemon(true);
-        connectionMonitor.start();
-
-        apiMonitor = new ApiMonitor();
-        apiMonitorTimer = new Timer();
-        apiMonitorTimer.schedule(apiMonitor, 0, apiMonitorInterval);
+        monitorExecutor = Executors.newScheduledThreadPool(2,
+                ThreadUtil.newThreadFactory("RestApiMonitor", virtualThreads, true));
+        monitorExecutor.scheduleWithFixedDelay(new ConnectionMonitor(clientConnectionManager, idleConnectionTimeout),
+                connectionCheckInterval, connectionCheckInterval, TimeUnit.MILLISECONDS);
+        monitorExecutor.scheduleWithFixedDelay(new ApiMonitor(), 0, apiMonitorInterval, TimeUnit.MILLISECONDS);
     }
 
-    protected SSLConnectionSocketFactory buildSSLSocketFactory() {
+    private SSLConnectionSocketFactory buildSSLSocketFactory() {
         try {
             final SSLContextBuilder builder = new SSLContextBuilder();
             builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
@@ -159,8 +203,10 @@ public class RestApiOperation implements Operation {
 
     @Override
     public void destroy() {
-        connectionMonitor.shutdown();
-        apiMonitorTimer.cancel();
+        monitorExecutor.shutdownNow();
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
         try {
             httpClient.close();
         } catch (final IOException e) {
@@ -175,26 +221,103 @@ public class RestApiOperation implements Operation {
 
     @Override
     public void excute(final List<Event> eventList) {
-        if (!apiAvailable.get()) {
+        if (!circuitBreaker.allowRequest()) {
             callbackResultError(eventList);
             return;
         }
 
-        boolean isSuccess = false;
-        int start = 0;
-        int retryCount = 0;
-        while (true) {
-            int end;
-            if (start + eventCapacity < eventList.size()) {
-                end = start + eventCapacity;
-            } else {
-                end = eventList.size();
+        final List<List<Event>> chunkList = new ArrayList<>();
+        for (int start = 0; start < eventList.size(); start += eventCapacity) {
+            chunkList.add(eventList.subList(start, Math.min(start + eventCapacity, eventList.size())));
+        }
+        if (uploadExecutor != null && chunkList.size() > 1) {
+            sendConcurrently(chunkList);
+            return;
+        }
+
+        for (int i = 0; i < chunkList.size(); i++) {
+            if (i > 0) {
+                sleep();
+            }
+            if (!send(chunkList.get(i))) {
+                // finished by an error
+                callbackResultError(eventList);
+                return;
+            }
+        }
+        callbackResultSuccess(eventList);
+    }
+
+    /**
+     * Posts up to uploadWindow chunks at a time, and reports the events of
+     * the chunks that failed after their retries apart from the others.
+     */
+    protected void sendConcurrently(final List<List<Event>> chunkList) {
+        final CompletionService<Boolean> completionService = new ExecutorCompletionService<>(uploadExecutor);
+        final Map<Future<Boolean>, List<Event>> futureMap = new HashMap<>();
+        final List<Event> succeededList = new ArrayList<>();
+        final List<Event> failedList = new ArrayList<>();
+        int next = 0;
+        try {
+            for (; next < chunkList.size() && next < uploadWindow; next++) {
+                final List<Event> chunk = chunkList.get(next);
+                futureMap.put(completionService.submit(() -> send(chunk)), chunk);
             }
+            while (!futureMap.isEmpty()) {
+                final Future<Boolean> future = completionService.take();
+                final List<Event> chunk = futureMap.remove(future);
+                boolean isSuccess = false;
+                try {
+                    isSuccess = future.get();
+                } catch (final ExecutionException e) {
+                    logger.warn("Failed to send " + chunk.size() + " events.", e);
+                }
+                if (isSuccess) {
+                    succeededList.addAll(chunk);
+                } else {
+                    failedList.addAll(chunk);
+                }
+                if (next < chunkList.size() && !circuitBreaker.isOpen()) {
+                    final List<Event> nextChunk = chunkList.get(next++);
+                    futureMap.put(completionService.submit(() -> send(nextChunk)), nextChunk);
+                }
+            }
+            // the circuit opened, the unsent chunks are backed up
+            for (; next < chunkList.size(); next++) {
+                failedList.addAll(chunkList.get(next));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the unfinished chunks are backed up, even if they might be sent
+            for (final Map.Entry<Future<Boolean>, List<Event>> entry : futureMap.entrySet()) {
+                entry.getKey().cancel(true);
+                failedList.addAll(entry.getValue());
+            }
+            for (; next < chunkList.size(); next++) {
+                failedList.addAll(chunkList.get(next));
+            }
+        }
 
+        if (!succeededList.isEmpty()) {
+            callbackResultSuccess(succeededList);
+        }
+        if (!failedList.isEmpty()) {
+            callbackResultError(failedList);
+        }
+    }
+
+    /**
+     * Posts the events, retrying while the retry policy allows it and the
+     * circuit stays closed.
+     */
+    protected boolean send(final List<Event> eventList) {
+        retryPolicy.onRequest();
+        int retryCount = 0;
+        while (true) {
             HttpPost httpPost = null;
             HttpEntity httpEntity = null;
             try {
-                httpPost = getHttpPost(eventList.subList(start, end));
+                httpPost = getHttpPost(eventList);
 
                 final HttpResponse response = httpClient.execute(httpPost);
                 httpEntity = response.getEntity();
@@ -204,33 +327,14 @@ public class RestApiOperation implements Operation {
                 }
 
                 if (status == HttpStatus.SC_OK) {
-                    if (end < eventList.size()) {
-                        start = end;
-                        retryCount = 0;
-                    } else {
-                        // finished
-                        isSuccess = true;
-                        break;
-                    }
-                } else {
-                    final String content = getContentAsString(httpEntity);
-                    logger.warn("HTTPRequest error. status code: {}, retry: {}, url: {}, content: {}", status, retryCount, url, content);
-                    if (retryCount < maxRetryCount) {
-                        retryCount++;
-                    } else {
-                        // finished by an error
-                        break;
-                    }
+                    circuitBreaker.onSuccess();
+                    return true;
                 }
+                final String content = getContentAsString(httpEntity);
+                logger.warn("HTTPRequest error. status code: {}, retry: {}, url: {}, content: {}", status, retryCount, url, content);
             } catch (final Exception e) {
                 logger.warn("Could not access: " + url + " retry: "
                         + retryCount, e);
-                if (retryCount < maxRetryCount) {
-                    retryCount++;
-                } else {
-                    // finished by an error
-                    break;
-                }
                 if (httpPost != null) {
                     httpPost.abort();
                 }
@@ -238,13 +342,12 @@ public class RestApiOperation implements Operation {
                 EntityUtils.consumeQuietly(httpEntity);
             }
 
-            sleep();
-        }
-
-        if (isSuccess) {
-            callbackResultSuccess(eventList);
-        } else {
-            callbackResultError(eventList);
+            circuitBreaker.onFailure();
+            if (circuitBreaker.isOpen() || !retryPolicy.tryRetry(retryCount)) {
+                return false;
+            }
+            retryPolicy.sleep(retryCount);
+            retryCount++;
         }
     }
 
@@ -276,51 +379,21 @@ public class RestApiOperation implements Operation {
                 "application/json")};
         httpPost.setHeaders(headers);
 
-        final String json = generateJson(eventList);
-        httpPost.setEntity(new StringEntity(json, "UTF-8"));
+        final EventJsonEntity jsonEntity = new EventJsonEntity(eventList);
+        if (requestCompression != null && jsonEntity.getContentLength() >= compressionThreshold) {
+            httpPost.setEntity(new CompressedEntity(jsonEntity, requestCompression, compressionLevel));
+        } else {
+            httpPost.setEntity(jsonEntity);
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("requestLine: {}", httpPost.getRequestLine());
             logger.debug("requestBody: "
-                    + EntityUtils.toString(httpPost.getEntity()));
+                    + EntityUtils.toString(jsonEntity));
         }
         return httpPost;
     }
 
-    protected String generateJson(final List<Event> events) {
-        final StringBuilder jsonBuf = new StringBuilder(1000);
-        jsonBuf.append('[');
-        for (int i = 0; i < events.size(); i++) {
-            final Event event = events.get(i);
-
-            if (i > 0) {
-                jsonBuf.append(',');
-            }
-            jsonBuf.append('{');
-
-            boolean isFirst = true;
-            for (final Map.Entry<String, Object> entry : event.entrySet()) {
-                if (isFirst) {
-                    isFirst = false;
-                } else {
-                    jsonBuf.append(',');
-                }
-                jsonBuf.append('\"');
-                jsonBuf.append(StringEscapeUtils.escapeEcmaScript(entry
-                        .getKey()));
-                jsonBuf.append("\":\"");
-                jsonBuf.append(StringEscapeUtils.escapeEcmaScript(entry
-                        .getValue().toString().replace("\'", "")));
-                jsonBuf.append('\"');
-            }
-            jsonBuf.append('}');
-        }
-
-        jsonBuf.append(']');
-
-        return jsonBuf.toString();
-    }
-
     private void callbackResultSuccess(final List<Event> eventList) {
         if (!listenerList.isEmpty()) {
             for (OperationListener listener : listenerList) {
@@ -345,60 +418,42 @@ public class RestApiOperation implements Operation {
         }
     }
 
-    public static class ConnectionMonitor extends Thread {
+    public static class ConnectionMonitor implements Runnable {
 
         private final HttpClientConnectionManager clientConnectionManager;
 
-        private volatile boolean shutdown = false;
-
-        private final long connectionCheckInterval;
-
         private final long idleConnectionTimeout;
 
         public ConnectionMonitor(
                 final HttpClientConnectionManager clientConnectionManager,
-                final long connectionCheckInterval,
                 final long idleConnectionTimeout) {
-            super();
             this.clientConnectionManager = clientConnectionManager;
-            this.connectionCheckInterval = connectionCheckInterval;
             this.idleConnectionTimeout = idleConnectionTimeout;
         }
 
         @Override
         public void run() {
-            while (!shutdown) {
-                synchronized (this) {
-                    try {
-                        wait(connectionCheckInterval);
-                        // Close expired connections
-                        clientConnectionManager.closeExpiredConnections();
-                        // Close idle connections
-                        clientConnectionManager.closeIdleConnections(
-                                idleConnectionTimeout, TimeUnit.MILLISECONDS);
-                    } catch (final Exception e) {
-                        logger.warn(
-                                "A connection monitoring exception occurs.", e);
-                    }
-                }
-            }
-        }
-
-        public void shutdown() {
-            shutdown = true;
-            synchronized (this) {
-                notifyAll();
+            try {
+                // Close expired connections
+                clientConnectionManager.closeExpiredConnections();
+                // Close idle connections
+                clientConnectionManager.closeIdleConnections(
+                        idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            } catch (final Exception e) {
+                logger.warn(
+                        "A connection monitoring exception occurs.", e);
             }
         }
     }
 
-    protected class ApiMonitor extends TimerTask {
+    protected class ApiMonitor implements Runnable {
         @Override
         public void run() {
-            boolean before = apiAvailable.get();
+            boolean before = apiReachable.get();
             boolean after = isReachable();
-            apiAvailable.set(after);
+            apiReachable.set(after);
             if (!after) {
+                circuitBreaker.trip();
                 if (after != before) {
                     if (logger.isInfoEnabled()) {
                         logger.info("Api Monitoring. Server is not available. {}", url);
@@ -408,6 +463,7 @@ public class RestApiOperation implements Operation {
                 if (logger.isInfoEnabled()) {
                     logger.info("Api Monitoring. Server was restored. {}", url);
                 }
+                circuitBreaker.halfOpen();
                 callbackResoted();
             }
 
@@ -128,6 +128,7 @@ public class FileScanner implements Scanner {
                         @Override
                         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                             Event event = FileWatchTask.createEvent(FileWatchTask.CREATE, file, FileScanner.this.timestamp, Collections.emptyList());
+                            event.setSource(Event.SOURCE_SCANNER);
                             eventManager.addEvent(event);
                             counter++;
                             if (counter > 1000) {
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.util;
+
+import java.util.concurrent.ThreadFactory;
+
+public class ThreadUtil {
+
+    private ThreadUtil() {
+    }
+
+    public static ThreadFactory newThreadFactory(final String name, final boolean virtual, final boolean daemon) {
+        if (virtual) {
+            // virtual threads are always daemon threads
+            return Thread.ofVirtual().name(name + "-", 1).factory();
+        }
+        return Thread.ofPlatform().name(name + "-", 1).daemon(daemon).factory();
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.watcher.file;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.codelibs.empros.agent.event.Event;
+
+/**
+ * FileEvent keeps the file path, kind and timestamp in fixed fields instead
+ * of map entries. It is still a map of these three keys, in the same order
+ * as a plain event, and other keys are stored as usual.
+ *
+ * The path is held as an interned parent directory (see {@link PathDictionary})
+ * and a file name, and is only concatenated when it is read.
+ */
+public class FileEvent extends Event {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] KINDS = { FileWatchTask.CREATE, FileWatchTask.MODIFY, FileWatchTask.DELETE,
+            FileWatchTask.OVERFLOW };
+
+    private static final String[] SLOT_KEYS = { FileWatchTask.FILE, FileWatchTask.KIND, FileWatchTask.TIMESTAMP };
+
+    private static final int FILE_SLOT = 0;
+
+    private static final int KIND_SLOT = 1;
+
+    private static final int TIMESTAMP_SLOT = 2;
+
+    // ends with a separator
+    private String parent;
+
+    private String name;
+
+    private transient int pathHash;
+
+    private long timestamp;
+
+    private byte kind;
+
+    // a bit per slot that holds a value
+    private byte slots;
+
+    public FileEvent() {
+        super();
+    }
+
+    public FileEvent(final String kind, final String path, final long timestamp) {
+        super();
+        put(FileWatchTask.FILE, path);
+        put(FileWatchTask.KIND, kind);
+        this.timestamp = timestamp;
+        slots |= (byte) (1 << TIMESTAMP_SLOT);
+    }
+
+    public String getPath() {
+        return hasSlot(FILE_SLOT) ? (String) getSlot(FILE_SLOT) : null;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public boolean hasPath() {
+        return hasSlot(FILE_SLOT);
+    }
+
+    /**
+     * Returns the hash code of the path without building the path string.
+     */
+    public int getPathHash() {
+        int h = pathHash;
+        if (h == 0) {
+            h = parent.hashCode();
+            for (int i = 0; i < name.length(); i++) {
+                h = 31 * h + name.charAt(i);
+            }
+            pathHash = h;
+        }
+        return h;
+    }
+
+    public boolean isSamePath(final FileEvent event) {
+        return hasPath() && event.hasPath()
+                && getPathHash() == event.getPathHash()
+                && name.equals(event.name) && parent.equals(event.parent);
+    }
+
+    public String getKind() {
+        return hasSlot(KIND_SLOT) ? KINDS[kind] : null;
+    }
+
+    public long getTimestamp() {
+        return hasSlot(TIMESTAMP_SLOT) ? timestamp : 0L;
+    }
+
+    private static int slotOf(final Object key) {
+        for (int i = 0; i < SLOT_KEYS.length; i++) {
+            if (SLOT_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int kindOf(final Object value) {
+        for (int i = 0; i < KINDS.length; i++) {
+            if (KINDS[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasSlot(final int slot) {
+        return (slots & (1 << slot)) != 0;
+    }
+
+    private Object getSlot(final int slot) {
+        switch (slot) {
+            case FILE_SLOT:
+                return parent.isEmpty() ? name : parent.concat(name);
+            case KIND_SLOT:
+                return KINDS[kind];
+            default:
+                return timestamp;
+        }
+    }
+
+    // returns false if the value does not fit the slot
+    private boolean setSlot(final int slot, final Object value) {
+        switch (slot) {
+            case FILE_SLOT:
+                if (!(value instanceof String)) {
+                    return false;
+                }
+                final String path = (String) value;
+                final int pos = path.lastIndexOf('/') + 1;
+                parent = PathDictionary.getInstance().intern(path.substring(0, pos));
+                name = path.substring(pos);
+                pathHash = 0;
+                break;
+            case KIND_SLOT:
+                final int index = kindOf(value);
+                if (index == -1) {
+                    return false;
+                }
+                kind = (byte) index;
+                break;
+            default:
+                if (!(value instanceof Long)) {
+                    return false;
+                }
+                timestamp = (Long) value;
+                break;
+        }
+        slots |= (byte) (1 << slot);
+        return true;
+    }
+
+    private Object clearSlot(final int slot) {
+        if (!hasSlot(slot)) {
+            return null;
+        }
+        final Object value = getSlot(slot);
+        slots &= (byte) ~(1 << slot);
+        if (slot == FILE_SLOT) {
+            parent = null;
+            name = null;
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final int slot = slotOf(key);
+        if (slot != -1 && hasSlot(slot)) {
+            return getSlot(slot);
+        }
+        return super.isEmpty() ? null : super.get(key);
+    }
+
+    @Override
+    public Object getOrDefault(final Object key, final Object defaultValue) {
+        final Object value = get(key);
+        return value != null || containsKey(key) ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final int slot = slotOf(key);
+        if (slot != -1 && hasSlot(slot)) {
+            return true;
+        }
+        return !super.isEmpty() && super.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        for (int i = 0; i < SLOT_KEYS.length; i++) {
+            if (hasSlot(i) && getSlot(i).equals(value)) {
+                return true;
+            }
+        }
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        final int slot = slotOf(key);
+        if (slot == -1) {
+            return super.put(key, value);
+        }
+        final Object oldValue = hasSlot(slot) ? getSlot(slot) : super.remove(key);
+        if (!setSlot(slot, value)) {
+            clearSlot(slot);
+            super.put(key, value);
+        }
+        return oldValue;
+    }
+
+    @Override
+    public Object putIfAbsent(final String key, final Object value) {
+        final Object oldValue = get(key);
+        if (oldValue == null) {
+            put(key, value);
+        }
+        return oldValue;
+    }
+
+    @Override
+    public Object computeIfAbsent(final String key, final Function<? super String, ? extends Object> mappingFunction) {
+        final Object oldValue = get(key);
+        if (oldValue != null) {
+            return oldValue;
+        }
+        final Object newValue = mappingFunction.apply(key);
+        if (newValue != null) {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public Object computeIfPresent(final String key,
+                                   final BiFunction<? super String, ? super Object, ? extends Object> remappingFunction) {
+        final Object oldValue = get(key);
+        if (oldValue == null) {
+            return null;
+        }
+        final Object newValue = remappingFunction.apply(key, oldValue);
+        if (newValue == null) {
+            remove(key);
+        } else {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public Object compute(final String key,
+                          final BiFunction<? super String, ? super Object, ? extends Object> remappingFunction) {
+        final Object newValue = remappingFunction.apply(key, get(key));
+        if (newValue == null) {
+            remove(key);
+        } else {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public Object merge(final String key, final Object value,
+                        final BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction) {
+        Objects.requireNonNull(value);
+        final Object oldValue = get(key);
+        final Object newValue = oldValue == null ? value : remappingFunction.apply(oldValue, value);
+        if (newValue == null) {
+            remove(key);
+        } else {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public Object replace(final String key, final Object value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(final String key, final Object oldValue, final Object newValue) {
+        if (!containsKey(key) || !Objects.equals(get(key), oldValue)) {
+            return false;
+        }
+        put(key, newValue);
+        return true;
+    }
+
+    @Override
+    public void replaceAll(final BiFunction<? super String, ? super Object, ? extends Object> function) {
+        // a value that does not fit its slot moves to the map, so the keys are copied first
+        for (final String key : new ArrayList<>(keySet())) {
+            put(key, function.apply(key, get(key)));
+        }
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        if (!containsKey(key) || !Objects.equals(get(key), value)) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    @Override
+    public void putAll(final Map<? extends String, ? extends Object> m) {
+        for (final Map.Entry<? extends String, ? extends Object> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        final int slot = slotOf(key);
+        if (slot != -1 && hasSlot(slot)) {
+            return clearSlot(slot);
+        }
+        return super.isEmpty() ? null : super.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return Integer.bitCount(slots) + super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return slots == 0 && super.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        slots = 0;
+        parent = null;
+        name = null;
+        super.clear();
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super String, ? super Object> action) {
+        for (final Map.Entry<String, Object> entry : entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return FileEvent.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<Map.Entry<String, Object>> it = new EntryIterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return it.next().getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        it.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return FileEvent.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new AbstractCollection<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                final Iterator<Map.Entry<String, Object>> it = new EntryIterator();
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return it.next().getValue();
+                    }
+
+                    @Override
+                    public void remove() {
+                        it.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return FileEvent.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Object clone() {
+        final FileEvent event = new FileEvent();
+        event.putAll(this);
+        event.setEventComparator(getEventComparator());
+        event.setSource(getSource());
+        return event;
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (parent != null) {
+            parent = PathDictionary.getInstance().intern(parent);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private int slot = 0;
+
+        private int lastSlot = -1;
+
+        private Iterator<Map.Entry<String, Object>> extraIterator;
+
+        @Override
+        public boolean hasNext() {
+            while (slot < SLOT_KEYS.length) {
+                if (hasSlot(slot)) {
+                    return true;
+                }
+                slot++;
+            }
+            if (extraIterator == null) {
+                extraIterator = FileEvent.super.entrySet().iterator();
+            }
+            return extraIterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (slot < SLOT_KEYS.length) {
+                lastSlot = slot++;
+                return new SlotEntry(lastSlot);
+            }
+            lastSlot = -1;
+            return extraIterator.next();
+        }
+
+        @Override
+        public void remove() {
+            if (lastSlot != -1) {
+                clearSlot(lastSlot);
+                lastSlot = -1;
+            } else if (extraIterator != null) {
+                extraIterator.remove();
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private class SlotEntry extends AbstractMap.SimpleEntry<String, Object> {
+        private static final long serialVersionUID = 1L;
+
+        SlotEntry(final int slot) {
+            super(SLOT_KEYS[slot], getSlot(slot));
+        }
+
+        @Override
+        public Object setValue(final Object value) {
+            super.setValue(value);
+            return put(getKey(), value);
+        }
+    }
+}
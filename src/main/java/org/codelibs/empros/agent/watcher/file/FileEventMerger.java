@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.watcher.file;
+
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.event.EventMerger;
+
+/**
+ * FileEventMerger folds the events of a path into their net effect, so
+ * create-modify is a create and create-delete is nothing. Only a create
+ * seen by the watcher cancels out with a delete; after a scanned or restored
+ * create, the delete is still sent.
+ */
+public class FileEventMerger implements EventMerger {
+
+    @Override
+    public Event merge(final Event queued, final Event incoming) {
+        final Object queuedKind = queued.get(FileWatchTask.KIND);
+        final Object incomingKind = incoming.get(FileWatchTask.KIND);
+
+        final String kind;
+        if (FileWatchTask.OVERFLOW.equals(queuedKind) || FileWatchTask.OVERFLOW.equals(incomingKind)) {
+            kind = FileWatchTask.OVERFLOW;
+        } else if (FileWatchTask.CREATE.equals(queuedKind)) {
+            if (FileWatchTask.DELETE.equals(incomingKind)) {
+                if (Event.SOURCE_WATCHER.equals(queued.getSource())) {
+                    // the file did not exist before and does not exist now
+                    return null;
+                }
+                // a scanned or restored create does not mean the server lacks the file
+                kind = FileWatchTask.DELETE;
+            } else {
+                kind = FileWatchTask.CREATE;
+                // the create still tells where the file was found
+                incoming.setSource(queued.getSource());
+            }
+        } else if (FileWatchTask.DELETE.equals(queuedKind)) {
+            if (FileWatchTask.DELETE.equals(incomingKind)) {
+                kind = FileWatchTask.DELETE;
+            } else {
+                // the file was replaced
+                kind = FileWatchTask.MODIFY;
+            }
+        } else if (FileWatchTask.MODIFY.equals(queuedKind)) {
+            if (FileWatchTask.DELETE.equals(incomingKind)) {
+                kind = FileWatchTask.DELETE;
+            } else {
+                kind = FileWatchTask.MODIFY;
+            }
+        } else {
+            return incoming;
+        }
+
+        incoming.put(FileWatchTask.KIND, kind);
+        return incoming;
+    }
+}
@@ -123,6 +123,7 @@ public class FileWatchTask extends Thread {
                         }
 
                         final Event fileEvent = createEvent(kind, path, timestamp, pathReplaceRules);
+                        fileEvent.setSource(Event.SOURCE_WATCHER);
                         manager.addEvent(fileEvent);
                     }
 
@@ -148,15 +149,12 @@ public class FileWatchTask extends Thread {
     }
 
     public static Event createEvent(final String kind, final Path path, final long timestamp, final List<PathReplaceRule> pathReplaceRules) {
-        final Event fileEvent = new Event();
         String convertedPath = path.toString().replace("\\", "/");
         for (final PathReplaceRule rule: pathReplaceRules) {
             convertedPath = convertedPath.replace(rule.getOldPath(), rule.getNewPath());
         }
 
-        fileEvent.put(FILE, convertedPath);
-        fileEvent.put(KIND, kind);
-        fileEvent.put(TIMESTAMP, timestamp);
+        final Event fileEvent = new FileEvent(kind, convertedPath, timestamp);
         fileEvent.setEventComparator(EVENT_COMPARATOR);
         return fileEvent;
     }
@@ -164,6 +162,9 @@ public class FileWatchTask extends Thread {
     public static class FileEventComerator implements EventComparator, Serializable {
         @Override
         public int hashCode(final Event self) {
+            if (self instanceof FileEvent && ((FileEvent) self).hasPath()) {
+                return ((FileEvent) self).getPathHash();
+            }
             final Object path = self.get(FILE);
             if (path != null) {
                 return path.hashCode();
@@ -174,6 +175,10 @@ public class FileWatchTask extends Thread {
 
         @Override
         public boolean equals(final Event self, final Object target) {
+            if (self instanceof FileEvent && target instanceof FileEvent
+                    && ((FileEvent) self).hasPath() && ((FileEvent) target).hasPath()) {
+                return ((FileEvent) self).isSamePath((FileEvent) target);
+            }
             if (target instanceof Event) {
                 final Object selfPath = self.get(FILE);
                 return selfPath != null
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.watcher.file;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * PathDictionary interns parent directories, so file events under the same
+ * directory share one string. Unused entries are reclaimed by the garbage
+ * collector.
+ */
+public class PathDictionary {
+
+    private static final PathDictionary INSTANCE = new PathDictionary();
+
+    protected final Map<String, WeakReference<String>> directoryMap = new WeakHashMap<>();
+
+    public static PathDictionary getInstance() {
+        return INSTANCE;
+    }
+
+    public String intern(final String directory) {
+        synchronized (directoryMap) {
+            final WeakReference<String> ref = directoryMap.get(directory);
+            final String interned = ref != null ? ref.get() : null;
+            if (interned != null) {
+                return interned;
+            }
+            directoryMap.put(directory, new WeakReference<>(directory));
+            return directory;
+        }
+    }
+
+    public int size() {
+        synchronized (directoryMap) {
+            return directoryMap.size();
+        }
+    }
+}
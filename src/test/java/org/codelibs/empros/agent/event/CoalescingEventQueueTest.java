@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class CoalescingEventQueueTest {
+
+    @Test
+    public void test_fifo() {
+        final CoalescingEventQueue queue = new CoalescingEventQueue();
+        final Event event1 = createEvent(FileWatchTask.CREATE, "/tmp/a.txt");
+        final Event event2 = createEvent(FileWatchTask.CREATE, "/tmp/b.txt");
+        final Event event3 = createEvent(FileWatchTask.CREATE, "/tmp/c.txt");
+        queue.add(event1);
+        queue.add(event2);
+        queue.add(event3);
+
+        assertEquals(3, queue.size());
+        assertSame(event1, queue.poll());
+        assertSame(event2, queue.poll());
+        assertSame(event3, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void test_replace() {
+        final CoalescingEventQueue queue = new CoalescingEventQueue();
+        final Event event1 = createEvent(FileWatchTask.CREATE, "/tmp/a.txt");
+        final Event event2 = createEvent(FileWatchTask.CREATE, "/tmp/b.txt");
+        final Event event3 = createEvent(FileWatchTask.MODIFY, "/tmp/a.txt");
+        queue.add(event1);
+        queue.add(event2);
+        queue.add(event3);
+
+        assertEquals(2, queue.size());
+        assertSame(event2, queue.poll());
+        final Event event = queue.poll();
+        assertSame(event3, event);
+        assertEquals(FileWatchTask.MODIFY, event.get(FileWatchTask.KIND));
+    }
+
+    @Test
+    public void test_drainTo() {
+        final CoalescingEventQueue queue = new CoalescingEventQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.add(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+        }
+
+        final List<Event> eventList = new ArrayList<>();
+        assertEquals(4, queue.drainTo(eventList, 4));
+        assertEquals(4, eventList.size());
+        assertEquals("/tmp/0.txt", eventList.get(0).get(FileWatchTask.FILE));
+        assertEquals(6, queue.size());
+    }
+
+    @Test
+    public void test_capacity() {
+        final CoalescingEventQueue queue = new CoalescingEventQueue(2);
+        assertTrue(queue.offer(createEvent(FileWatchTask.CREATE, "/tmp/a.txt")));
+        assertTrue(queue.offer(createEvent(FileWatchTask.CREATE, "/tmp/b.txt")));
+        assertFalse(queue.offer(createEvent(FileWatchTask.CREATE, "/tmp/c.txt")));
+        // replacing a queued key does not need a free slot
+        assertTrue(queue.offer(createEvent(FileWatchTask.MODIFY, "/tmp/a.txt")));
+        assertEquals(2, queue.size());
+
+        queue.offerUnbounded(createEvent(FileWatchTask.CREATE, "/tmp/c.txt"));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void test_priorityLanes() {
+        final CoalescingEventQueue queue = new CoalescingEventQueue(Integer.MAX_VALUE,
+                new PriorityLanes("delete:3,watcher:2,scanner:1"));
+        for (int i = 0; i < 6; i++) {
+            final Event event = createEvent(FileWatchTask.CREATE, "/tmp/s" + i + ".txt");
+            event.setSource(Event.SOURCE_SCANNER);
+            queue.add(event);
+        }
+        for (int i = 0; i < 4; i++) {
+            final Event event = createEvent(FileWatchTask.MODIFY, "/tmp/w" + i + ".txt");
+            event.setSource(Event.SOURCE_WATCHER);
+            queue.add(event);
+        }
+        final Event deleteEvent = createEvent(FileWatchTask.DELETE, "/tmp/w3.txt");
+        deleteEvent.setSource(Event.SOURCE_WATCHER);
+        queue.add(deleteEvent);
+        assertEquals(10, queue.size());
+        assertEquals(1, queue.size(0));
+
+        final List<Event> eventList = new ArrayList<>();
+        assertEquals(6, queue.drainTo(eventList, 6));
+        assertSame(deleteEvent, eventList.get(0));
+        int scanned = 0;
+        for (final Event event : eventList) {
+            if (Event.SOURCE_SCANNER.equals(event.getSource())) {
+                scanned++;
+            }
+        }
+        assertEquals(2, scanned);
+        // the oldest event of the lowest priority lane is evicted first
+        assertEquals("/tmp/s2.txt", queue.evict().get(FileWatchTask.FILE));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EventBatcherTest {
+
+    // simulates the arrivals over the last second
+    private void sample(final EventBatcher batcher, final int arrivals) {
+        for (int i = 0; i < arrivals; i++) {
+            batcher.onArrival();
+        }
+        batcher.lastSampleTime = System.currentTimeMillis() - 1000L;
+        batcher.adjustLingerTime();
+    }
+
+    @Test
+    public void test_isFull() {
+        final EventBatcher batcher = new EventBatcher(10, 1000L, 0L, 100L, false);
+        assertFalse(batcher.isFull(9, 999L));
+        assertTrue(batcher.isFull(10, 0L));
+        assertTrue(batcher.isFull(1, 1000L));
+
+        // no byte limit
+        final EventBatcher unlimited = new EventBatcher(10, 0L, 0L, 100L, false);
+        assertFalse(unlimited.isFull(9, Long.MAX_VALUE));
+        assertTrue(unlimited.isFull(10, 0L));
+    }
+
+    @Test
+    public void test_exceedsBytes() {
+        final EventBatcher batcher = new EventBatcher(10, 1000L, 0L, 100L, false);
+        assertFalse(batcher.exceedsBytes(900L, 100));
+        assertTrue(batcher.exceedsBytes(900L, 101));
+        assertFalse(batcher.exceedsBytes(0L, 1000));
+
+        final EventBatcher unlimited = new EventBatcher(10, 0L, 0L, 100L, false);
+        assertFalse(unlimited.exceedsBytes(Long.MAX_VALUE - 1, 1));
+    }
+
+    @Test
+    public void test_fixedLinger() {
+        final EventBatcher batcher = new EventBatcher(100, 0L, 10L, 500L, false);
+        assertEquals(500L, batcher.getLingerTime());
+        sample(batcher, 10000);
+        assertEquals(500L, batcher.getLingerTime());
+        sample(batcher, 0);
+        assertEquals(500L, batcher.getLingerTime());
+    }
+
+    @Test
+    public void test_adaptiveLinger() {
+        final EventBatcher batcher = new EventBatcher(100, 0L, 10L, 500L, true);
+        assertEquals(500L, batcher.getLingerTime());
+
+        // no event is expected within the linger time
+        sample(batcher, 0);
+        assertEquals(10L, batcher.getLingerTime());
+
+        // 10 events/ms, the average moves by 0.3 of the sample: 3 events/ms
+        sample(batcher, 10000);
+        assertEquals(33L, batcher.getLingerTime());
+
+        // 5.1 events/ms
+        sample(batcher, 10000);
+        assertEquals(19L, batcher.getLingerTime());
+
+        // a slow rate waits up to the max linger time
+        final EventBatcher slow = new EventBatcher(100, 0L, 10L, 500L, true);
+        sample(slow, 300);
+        assertEquals(500L, slow.getLingerTime());
+
+        // a busy rate does not go below the min linger time
+        final EventBatcher busy = new EventBatcher(100, 0L, 10L, 500L, true);
+        sample(busy, 100000);
+        assertEquals(10L, busy.getLingerTime());
+    }
+
+    @Test
+    public void test_sampleInterval() {
+        final EventBatcher batcher = new EventBatcher(100, 0L, 10L, 500L, true);
+        batcher.lastSampleTime = System.currentTimeMillis();
+        batcher.onArrival();
+        // not sampled until the sample interval passes
+        batcher.adjustLingerTime();
+        assertEquals(500L, batcher.getLingerTime());
+        assertEquals(0L, batcher.lastArrivalCount);
+    }
+}
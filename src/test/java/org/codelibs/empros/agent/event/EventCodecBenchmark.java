@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+
+/**
+ * Compares EventCodec with Java serialization. Run the main method with the
+ * test classpath.
+ */
+public class EventCodecBenchmark {
+
+    private static final int EVENTS = 10000;
+
+    private static final int ROUNDS = 50;
+
+    public static void main(final String[] args) throws Exception {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY,
+                    Paths.get("/data/share/projects/p" + (i % 50) + "/docs/file" + i + ".txt"),
+                    System.currentTimeMillis(), Collections.emptyList()));
+        }
+        final EventCodec codec = new EventCodec();
+
+        for (int n = 0; n < 2; n++) {
+            // the first pass is a warm up
+            long size = 0;
+            long encodeTime = 0;
+            long decodeTime = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (ObjectOutputStream outObject = new ObjectOutputStream(out)) {
+                    outObject.writeObject(events);
+                }
+                encodeTime += System.nanoTime() - start;
+                size = out.size();
+                start = System.nanoTime();
+                try (ObjectInputStream inObject = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                    inObject.readObject();
+                }
+                decodeTime += System.nanoTime() - start;
+            }
+            print("serialization", size, encodeTime, decodeTime);
+
+            encodeTime = 0;
+            decodeTime = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                codec.write(out, events);
+                encodeTime += System.nanoTime() - start;
+                size = out.size();
+                start = System.nanoTime();
+                codec.read(new ByteArrayInputStream(out.toByteArray()));
+                decodeTime += System.nanoTime() - start;
+            }
+            print("codec", size, encodeTime, decodeTime);
+        }
+    }
+
+    private static void print(final String name, final long size, final long encodeTime, final long decodeTime) {
+        final long total = (long) EVENTS * ROUNDS;
+        System.out.printf("%-14s %6d bytes/batch, encode %,10d events/s, decode %,10d events/s%n", name, size,
+                total * 1000000000L / encodeTime, total * 1000000000L / decodeTime);
+    }
+}
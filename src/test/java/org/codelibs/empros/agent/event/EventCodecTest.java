@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.empros.agent.watcher.file.FileEvent;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class EventCodecTest {
+
+    private List<Event> createEvents() {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.CREATE, Paths.get("/tmp/dir/" + i + ".txt"), 1000L + i,
+                    Collections.emptyList()));
+        }
+        final Event event = new Event();
+        event.put("id", 1L);
+        event.put("count", 2);
+        event.put("text", "あいう");
+        event.put("flag", true);
+        event.put("score", 0.5d);
+        event.put("date", new java.util.Date(1000L));
+        event.put("empty", null);
+        events.add(event);
+        for (int i = 0; i < 2; i++) {
+            // long values are prefix-compressed
+            final Event longEvent = new Event();
+            longEvent.put("path", "/data/共有フォルダ/プロジェクト/ドキュメント/2020/報告書/月次/営業部/東京支社/" + i + "/report-😀.txt");
+            events.add(longEvent);
+        }
+        return events;
+    }
+
+    @Test
+    public void test_readWrite() throws Exception {
+        final EventCodec codec = new EventCodec();
+        final List<Event> events = createEvents();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(out, events);
+
+        final List<Event> restored = codec.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(events.size(), restored.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(events.get(i).getClass(), restored.get(i).getClass());
+            assertTrue(events.get(i).equals(restored.get(i), false));
+            assertEquals(events.get(i).hashCode(), restored.get(i).hashCode());
+        }
+        assertTrue(restored.get(0) instanceof FileEvent);
+        assertSame(restored.get(0).getEventComparator(), restored.get(1).getEventComparator());
+    }
+
+    @Test
+    public void test_readSerialized() throws Exception {
+        final List<Event> events = createEvents();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream outObject = new ObjectOutputStream(out)) {
+            outObject.writeObject(events);
+        }
+
+        final List<Event> restored = new EventCodec().read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(events, restored);
+    }
+
+    @Test
+    public void test_sourceKept() throws Exception {
+        final List<Event> events = createEvents();
+        events.get(0).setSource(Event.SOURCE_SCANNER);
+        events.get(1).setSource(Event.SOURCE_WATCHER);
+
+        final EventCodec codec = new EventCodec();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(out, events);
+        List<Event> restored = codec.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNull(restored.get(0).getSource());
+
+        codec.setSourceKept(true);
+        out.reset();
+        codec.write(out, events);
+        restored = codec.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Event.SOURCE_SCANNER, restored.get(0).getSource());
+        assertEquals(Event.SOURCE_WATCHER, restored.get(1).getSource());
+        assertNull(restored.get(2).getSource());
+        assertEquals(events, restored);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.empros.agent.watcher.file.FileEventMerger;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class EventDebouncerTest {
+
+    private final BlockingQueue<List<Event>> releasedQueue = new LinkedBlockingQueue<>();
+
+    private final List<Event> discardedList = new CopyOnWriteArrayList<>();
+
+    private EventDebouncer createDebouncer(final long quietPeriod, final long maxHoldTime) {
+        final EventDebouncer debouncer = new EventDebouncer(quietPeriod, maxHoldTime, releasedQueue::add);
+        debouncer.setDiscardHandler(discardedList::add);
+        return debouncer;
+    }
+
+    @Test
+    public void test_quietPeriod() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(200L, 10000L);
+        debouncer.start();
+        try {
+            for (int i = 0; i < 6; i++) {
+                debouncer.offer(createEvent(FileWatchTask.MODIFY, "/tmp/a.txt"));
+                Thread.sleep(50L);
+            }
+            final Event last = createEvent(FileWatchTask.MODIFY, "/tmp/a.txt");
+            debouncer.offer(last);
+            final long lastTime = System.currentTimeMillis();
+            // the events keep arriving within the quiet period
+            assertTrue(releasedQueue.isEmpty());
+
+            final List<Event> eventList = releasedQueue.poll(5, TimeUnit.SECONDS);
+            assertNotNull(eventList);
+            assertTrue(System.currentTimeMillis() - lastTime >= 190L);
+            assertEquals(1, eventList.size());
+            assertSame(last, eventList.get(0));
+            assertEquals(0, debouncer.size());
+            // the superseded events are discarded
+            assertEquals(6, discardedList.size());
+        } finally {
+            debouncer.stop(false);
+        }
+    }
+
+    @Test
+    public void test_maxHoldTime() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(200L, 500L);
+        debouncer.start();
+        try {
+            final long firstTime = System.currentTimeMillis();
+            List<Event> eventList = null;
+            while (eventList == null && System.currentTimeMillis() - firstTime < 5000L) {
+                debouncer.offer(createEvent(FileWatchTask.MODIFY, "/tmp/a.txt"));
+                eventList = releasedQueue.poll(50, TimeUnit.MILLISECONDS);
+            }
+            // released by the max hold time, although the quiet period never passed
+            assertNotNull(eventList);
+            final long holdTime = System.currentTimeMillis() - firstTime;
+            assertTrue(holdTime >= 490L);
+            assertTrue(holdTime < 2000L);
+            assertEquals(1, eventList.size());
+        } finally {
+            debouncer.stop(false);
+        }
+    }
+
+    @Test
+    public void test_merge() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(100L, 1000L);
+        debouncer.setEventMerger(new FileEventMerger());
+        final Event create = createEvent(FileWatchTask.CREATE, "/tmp/a.txt");
+        final Event modify = createEvent(FileWatchTask.MODIFY, "/tmp/a.txt");
+        debouncer.offer(create);
+        debouncer.offer(modify);
+        assertEquals(1, debouncer.size());
+        assertEquals(1, discardedList.size());
+        assertSame(create, discardedList.get(0));
+
+        // a created and deleted file cancels out
+        final Event createB = createEvent(FileWatchTask.CREATE, "/tmp/b.txt");
+        final Event deleteB = createEvent(FileWatchTask.DELETE, "/tmp/b.txt");
+        debouncer.offer(createB);
+        debouncer.offer(deleteB);
+        assertEquals(1, debouncer.size());
+        assertEquals(3, discardedList.size());
+        assertSame(createB, discardedList.get(1));
+        assertSame(deleteB, discardedList.get(2));
+
+        debouncer.start();
+        final List<Event> eventList = releasedQueue.poll(5, TimeUnit.SECONDS);
+        debouncer.stop(false);
+        assertNotNull(eventList);
+        assertEquals(1, eventList.size());
+        assertSame(modify, eventList.get(0));
+        assertEquals(FileWatchTask.CREATE, eventList.get(0).get(FileWatchTask.KIND));
+        assertNull(releasedQueue.poll());
+    }
+
+    @Test
+    public void test_capacity() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(10000L, 10000L);
+        debouncer.setCapacity(2);
+        assertTrue(debouncer.offer(createEvent(FileWatchTask.CREATE, "/tmp/a.txt")));
+        assertTrue(debouncer.offer(createEvent(FileWatchTask.CREATE, "/tmp/b.txt")));
+        // a new key is refused, while a held key is still merged
+        assertFalse(debouncer.offer(createEvent(FileWatchTask.CREATE, "/tmp/c.txt")));
+        assertTrue(debouncer.offer(createEvent(FileWatchTask.MODIFY, "/tmp/a.txt")));
+        assertEquals(2, debouncer.size());
+        assertEquals(1, discardedList.size());
+    }
+
+    @Test
+    public void test_stopReleases() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(10000L, 10000L);
+        debouncer.start();
+        for (int i = 0; i < 10; i++) {
+            debouncer.offer(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+        }
+        debouncer.stop(true);
+
+        assertEquals(0, debouncer.size());
+        assertEquals(0, discardedList.size());
+        final List<Event> eventList = releasedQueue.poll();
+        assertNotNull(eventList);
+        assertEquals(10, eventList.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Paths.get("/tmp/" + i + ".txt").toString(), eventList.get(i).get(FileWatchTask.FILE));
+        }
+    }
+
+    @Test
+    public void test_stopDiscards() throws Exception {
+        final EventDebouncer debouncer = createDebouncer(10000L, 10000L);
+        debouncer.start();
+        for (int i = 0; i < 10; i++) {
+            debouncer.offer(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+        }
+        debouncer.stop(false);
+
+        assertEquals(0, debouncer.size());
+        assertNull(releasedQueue.poll());
+        assertEquals(10, discardedList.size());
+    }
+}
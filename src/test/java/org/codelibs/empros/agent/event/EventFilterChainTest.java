@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class EventFilterChainTest {
+
+    private static final String INDEX = "index";
+
+    private static final String FILTERED = "filtered";
+
+    private List<Event> createEvents(final int size) {
+        final List<Event> eventList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            final Event event = FileWatchTask.createEvent(FileWatchTask.CREATE, Paths.get("/tmp/" + i + ".txt"),
+                    System.currentTimeMillis(), Collections.emptyList());
+            event.put(INDEX, i);
+            eventList.add(event);
+        }
+        return eventList;
+    }
+
+    @Test
+    public void test_noFilter() {
+        final EventFilterChain chain = new EventFilterChain();
+        final List<Event> eventList = createEvents(10);
+        assertSame(eventList, chain.convertAll(eventList));
+        assertTrue(chain.getFilterStats().isEmpty());
+    }
+
+    @Test
+    public void test_convertAll() {
+        final EventFilterChain chain = new EventFilterChain();
+        final Set<Thread> threadSet = ConcurrentHashMap.newKeySet();
+        chain.addEventFilter(new DropOddFilter());
+        chain.addEventFilter(new MarkFilter(threadSet));
+        final List<Event> eventList = createEvents(100);
+        final List<Event> convertedList = chain.convertAll(eventList);
+
+        assertConverted(eventList, convertedList);
+        // below the threshold, the events are filtered on the caller thread
+        assertEquals(Collections.singleton(Thread.currentThread()), threadSet);
+        assertStats(chain, 100);
+    }
+
+    @Test
+    public void test_convertAllParallel() {
+        final EventFilterChain chain = new EventFilterChain();
+        chain.setParallelism(4);
+        final Set<Thread> threadSet = ConcurrentHashMap.newKeySet();
+        chain.addEventFilter(new DropOddFilter());
+        chain.addEventFilter(new MarkFilter(threadSet));
+        try {
+            // a small chunk is not worth the fork-join pool
+            final List<Event> smallList = createEvents(EventFilterChain.PARALLEL_THRESHOLD - 1);
+            assertConverted(smallList, chain.convertAll(smallList));
+            assertEquals(Collections.singleton(Thread.currentThread()), threadSet);
+
+            threadSet.clear();
+            final List<Event> eventList = createEvents(1000);
+            final List<Event> convertedList = chain.convertAll(eventList);
+            assertConverted(eventList, convertedList);
+            assertFalse(threadSet.contains(Thread.currentThread()));
+            assertTrue(threadSet.size() > 1);
+            assertStats(chain, EventFilterChain.PARALLEL_THRESHOLD - 1 + 1000);
+        } finally {
+            chain.shutdown();
+        }
+    }
+
+    @Test
+    public void test_newEventKeepsLog() {
+        final EventFilterChain chain = new EventFilterChain();
+        chain.addEventFilter(target -> {
+            final Event event = new Event();
+            event.putAll(target);
+            return event;
+        });
+        final Event event = createEvents(1).get(0);
+        event.setLogOffset(123L);
+        event.setSource(Event.SOURCE_RESTORE);
+        final Event converted = chain.convert(event);
+        assertEquals(123L, converted.getLogOffset());
+        assertEquals(Event.SOURCE_RESTORE, converted.getSource());
+    }
+
+    @Test
+    public void test_filterStats() {
+        final EventFilterChain.FilterStats filterStats = new EventFilterChain.FilterStats("test");
+        assertEquals("test count:0, dropped:0, avg:0ns", filterStats.toString());
+        filterStats.count.add(4);
+        filterStats.dropped.add(1);
+        filterStats.time.add(100);
+        assertEquals(4, filterStats.getCount());
+        assertEquals(1, filterStats.getDropped());
+        assertEquals(100, filterStats.getTotalNanos());
+        assertEquals("test count:4, dropped:1, avg:25ns", filterStats.toString());
+    }
+
+    // the odd events are dropped, and the others are marked in order
+    private void assertConverted(final List<Event> eventList, final List<Event> convertedList) {
+        assertEquals(eventList.size(), convertedList.size());
+        for (int i = 0; i < convertedList.size(); i++) {
+            final Event converted = convertedList.get(i);
+            if (i % 2 == 1) {
+                assertNull(converted);
+            } else {
+                assertSame(eventList.get(i), converted);
+                assertEquals(Boolean.TRUE, converted.get(FILTERED));
+            }
+        }
+    }
+
+    private void assertStats(final EventFilterChain chain, final int eventCount) {
+        final List<EventFilterChain.FilterStats> filterStatsList = chain.getFilterStats();
+        assertEquals(2, filterStatsList.size());
+        final EventFilterChain.FilterStats dropStats = filterStatsList.get(0);
+        assertEquals(DropOddFilter.class.getName(), dropStats.getName());
+        assertEquals(eventCount, dropStats.getCount());
+        assertEquals(eventCount / 2, dropStats.getDropped());
+        // the dropped events do not reach the next filter
+        final EventFilterChain.FilterStats markStats = filterStatsList.get(1);
+        assertEquals(MarkFilter.class.getName(), markStats.getName());
+        assertEquals(eventCount - eventCount / 2, markStats.getCount());
+        assertEquals(0, markStats.getDropped());
+    }
+
+    static class DropOddFilter implements EventFilter {
+        @Override
+        public Event convert(final Event target) {
+            return (Integer) target.get(INDEX) % 2 == 1 ? null : target;
+        }
+    }
+
+    static class MarkFilter implements EventFilter {
+        final Set<Thread> threadSet;
+
+        MarkFilter(final Set<Thread> threadSet) {
+            this.threadSet = threadSet;
+        }
+
+        @Override
+        public Event convert(final Event target) {
+            threadSet.add(Thread.currentThread());
+            try {
+                Thread.sleep(1L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            target.put(FILTERED, Boolean.TRUE);
+            return target;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.empros.agent.exception.EmprosSystemException;
+import org.codelibs.empros.agent.watcher.file.FileEventMerger;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventLogTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<Event> createEvents(final int start, final int count) {
+        final List<Event> events = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.CREATE, Paths.get("/tmp/" + i + ".txt"), 1000L,
+                    Collections.emptyList()));
+        }
+        return events;
+    }
+
+    private int countSegments(final File dir) {
+        return dir.listFiles((d, name) -> name.startsWith("evlog-") && !name.endsWith("checkpoint")).length;
+    }
+
+    @Test
+    public void test_appendAndCommit() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 200, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, eventLog.append(createEvents(i * 2, 2)));
+        }
+        assertTrue(countSegments(dir) > 1);
+
+        final List<Event> events0 = eventLog.next();
+        assertEquals("/tmp/0.txt", events0.get(0).get(FileWatchTask.FILE));
+        assertEquals(0, events0.get(0).getLogOffset());
+        final List<Event> events1 = eventLog.next();
+        eventLog.commit(events1);
+        // record 0 is not committed yet
+        eventLog.commit(events0.get(0));
+        eventLog.close();
+
+        // records after the first uncommitted one are read again
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 200, 0);
+        for (int i = 0; i < 5; i++) {
+            final List<Event> events = eventLog.next();
+            assertEquals(i, events.get(0).getLogOffset());
+            eventLog.commit(events);
+        }
+        assertNull(eventLog.next());
+        assertFalse(eventLog.hasNext());
+        assertEquals(1, countSegments(dir));
+        assertEquals(5, eventLog.append(createEvents(10, 1)));
+        eventLog.close();
+    }
+
+    @Test
+    public void test_brokenTail() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        eventLog.append(createEvents(0, 2));
+        eventLog.append(createEvents(2, 2));
+        eventLog.close();
+
+        final File segment = new File(dir, String.format("evlog-%019d", 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        assertEquals(2, eventLog.next().size());
+        assertNull(eventLog.next());
+        assertEquals(1, eventLog.append(createEvents(4, 1)));
+        assertEquals("/tmp/4.txt", eventLog.next().get(0).get(FileWatchTask.FILE));
+        eventLog.close();
+    }
+
+    @Test
+    public void test_compressionAndChecksum() throws Exception {
+        final File plainDir = temporaryFolder.newFolder();
+        EventLog eventLog = new EventLog(plainDir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        for (int i = 0; i < 3; i++) {
+            eventLog.append(createEvents(i * 100, 100));
+        }
+        eventLog.close();
+
+        final File dir = temporaryFolder.newFolder();
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        eventLog.setCompressed(true);
+        for (int i = 0; i < 3; i++) {
+            eventLog.append(createEvents(i * 100, 100));
+        }
+        eventLog.close();
+
+        final File segment = new File(dir, String.format("evlog-%019d", 0));
+        assertTrue(segment.length() * 2 < new File(plainDir, String.format("evlog-%019d", 0)).length());
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // the middle of the second record
+            final long position = file.length() / 2;
+            file.seek(position);
+            final int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        final List<Event> events0 = eventLog.next();
+        assertEquals(100, events0.size());
+        assertEquals("/tmp/0.txt", events0.get(0).get(FileWatchTask.FILE));
+        final List<Event> events2 = eventLog.next();
+        assertEquals("/tmp/200.txt", events2.get(0).get(FileWatchTask.FILE));
+        assertEquals(2, events2.get(0).getLogOffset());
+        assertNull(eventLog.next());
+        eventLog.close();
+    }
+
+    @Test
+    public void test_version1() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new EventCodec().write(payload, createEvents(0, 2));
+        final ByteBuffer buffer = ByteBuffer.allocate(9 + payload.size());
+        buffer.putInt(0x45564c47).put((byte) 1).putInt(payload.size()).put(payload.toByteArray());
+        Files.write(new File(dir, String.format("evlog-%019d", 0)).toPath(), buffer.array());
+
+        final EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        assertEquals(1, eventLog.append(createEvents(2, 1)));
+        assertEquals(2, eventLog.next().size());
+        assertEquals("/tmp/2.txt", eventLog.next().get(0).get(FileWatchTask.FILE));
+        assertNull(eventLog.next());
+        eventLog.close();
+        // records are not appended to a segment of an older version
+        assertEquals(2, countSegments(dir));
+    }
+
+    @Test
+    public void test_appendInUse() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        EventLog eventLog = new EventLog(dir.getAbsolutePath(), "journal-", 1024 * 1024, -1);
+        final List<Event> events0 = createEvents(0, 2);
+        final List<Event> events1 = createEvents(2, 2);
+        assertEquals(0, eventLog.appendInUse(events0));
+        assertEquals(1, eventLog.appendInUse(events1));
+        assertEquals(eventLog, events1.get(0).getEventLog());
+        // records in use are not read
+        assertNull(eventLog.next());
+        eventLog.commit(events0);
+        eventLog.commit(events1.get(0));
+        eventLog.close();
+
+        eventLog = new EventLog(dir.getAbsolutePath(), "journal-", 1024 * 1024, -1);
+        final List<Event> events = eventLog.next();
+        assertEquals(1, events.get(0).getLogOffset());
+        assertEquals(2, events.size());
+        assertNull(eventLog.next());
+        eventLog.close();
+    }
+
+    @Test
+    public void test_compact() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        // a segment for each record
+        EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1, -1);
+        for (int i = 0; i < 9; i++) {
+            final List<Event> events = createEvents(i, 1);
+            events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY, Paths.get("/tmp/a.txt"), 1000L + i,
+                    Collections.emptyList()));
+            if (i == 1 || i == 2) {
+                events.add(FileWatchTask.createEvent(i == 1 ? FileWatchTask.CREATE : FileWatchTask.DELETE,
+                        Paths.get("/tmp/c.txt"), 1000L, Collections.emptyList()));
+            }
+            eventLog.append(events);
+        }
+        eventLog.append(createEvents(9, 1));
+        eventLog.compact(new FileEventMerger());
+        assertEquals(10, countSegments(dir));
+        eventLog.close();
+
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1, -1);
+        int eventCount = 0;
+        for (int i = 0; i < 10; i++) {
+            final List<Event> events = eventLog.next();
+            for (final Event event : events) {
+                assertEquals(i, event.getLogOffset());
+                if ("/tmp/a.txt".equals(event.get(FileWatchTask.FILE))) {
+                    assertEquals(8, i);
+                    assertEquals(1008L, event.get(FileWatchTask.TIMESTAMP));
+                }
+                if ("/tmp/c.txt".equals(event.get(FileWatchTask.FILE))) {
+                    // a restored create does not cancel out with the delete
+                    assertEquals(2, i);
+                    assertEquals(FileWatchTask.DELETE, event.get(FileWatchTask.KIND));
+                }
+            }
+            eventCount += events.size();
+        }
+        assertEquals(12, eventCount);
+        assertNull(eventLog.next());
+        eventLog.close();
+    }
+
+    @Test
+    public void test_compactBounded() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        // a segment for each record
+        final EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1, -1);
+        eventLog.setMaxCompactionKeys(5);
+        int eventCount = 0;
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 10; i++) {
+                final List<Event> events = createEvents((round * 10 + i) * 3, 3);
+                events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY, Paths.get("/tmp/a.txt"), 1000L,
+                        Collections.emptyList()));
+                eventLog.append(events);
+                eventCount += events.size();
+            }
+            if (round == 1) {
+                // a corrupt record in a sealed segment is skipped
+                try (RandomAccessFile file = new RandomAccessFile(new File(dir, String.format("evlog-%019d", 12)), "rw")) {
+                    file.seek(file.length() - 1);
+                    final int b = file.read();
+                    file.seek(file.length() - 1);
+                    file.write(b ^ 0xff);
+                }
+                eventCount -= 4;
+            }
+            eventLog.compact(new FileEventMerger());
+            // only the segments sealed since the last pass are read
+            assertEquals(round == 0 ? 9 : 10, eventLog.lastCompactionSegments);
+            assertTrue(eventLog.lastCompactionKeys <= 5);
+        }
+
+        int readCount = 0;
+        int mergedCount = 0;
+        List<Event> events;
+        while ((events = eventLog.next()) != null) {
+            for (final Event event : events) {
+                if ("/tmp/a.txt".equals(event.get(FileWatchTask.FILE))) {
+                    mergedCount++;
+                }
+            }
+            readCount += events.size();
+        }
+        // each pass keeps one event for /tmp/a.txt, and the last segment is not compacted
+        assertEquals(5, mergedCount);
+        assertEquals(eventCount - 34, readCount);
+        eventLog.close();
+    }
+
+    @Test
+    public void test_failedAppend() throws Exception {
+        final File dir = temporaryFolder.newFolder();
+        EventLog eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        assertEquals(0, eventLog.append(createEvents(0, 2)));
+        final FailingChannel failingChannel = new FailingChannel(eventLog.writeChannel);
+        eventLog.writeChannel = failingChannel;
+        failingChannel.failed = true;
+        try {
+            eventLog.append(createEvents(2, 2));
+            fail();
+        } catch (final EmprosSystemException e) {
+            // disk full
+        }
+        failingChannel.failed = false;
+        assertEquals(1, eventLog.append(createEvents(4, 2)));
+        eventLog.close();
+
+        // the partial record is removed, so the next record is read
+        eventLog = new EventLog(dir.getAbsolutePath(), "evlog-", 1024 * 1024, -1);
+        assertEquals("/tmp/0.txt", eventLog.next().get(0).get(FileWatchTask.FILE));
+        final List<Event> events = eventLog.next();
+        assertEquals(1, events.get(0).getLogOffset());
+        assertEquals("/tmp/4.txt", events.get(0).get(FileWatchTask.FILE));
+        assertNull(eventLog.next());
+        eventLog.close();
+    }
+
+    // writes a part of the buffer and fails while failed is set
+    static class FailingChannel extends FileChannel {
+        final FileChannel channel;
+
+        volatile boolean failed = false;
+
+        FailingChannel(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (failed) {
+                final ByteBuffer part = src.duplicate();
+                part.limit(part.position() + part.remaining() / 2);
+                final int written = channel.write(part);
+                src.position(src.position() + written);
+                throw new IOException("No space left on device");
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target)
+                throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count)
+                throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvent;
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvents;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.operation.Operation;
+import org.codelibs.empros.agent.watcher.file.FileEventMerger;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventManagerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<Event> sentEvents(final StubOperation operation) {
+        final List<Event> eventList = new ArrayList<>();
+        for (final List<Event> batch : operation.batchList) {
+            eventList.addAll(batch);
+        }
+        return eventList;
+    }
+
+    @Test
+    public void test_lingerKeepsLatestEvent() throws Exception {
+        final EventManager eventManager = new EventManager(100, 1, false, "/tmp", 500L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.start();
+        try {
+            eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/a.txt"));
+            eventManager.submit();
+            // the create is drained into the lingering batch
+            Thread.sleep(200L);
+            assertEquals(0, eventManager.getQueuedCount());
+            eventManager.addEvent(createEvent(FileWatchTask.DELETE, "/tmp/a.txt"));
+            eventManager.submit();
+
+            assertTrue(eventManager.flush(5000L));
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(1, eventList.size());
+            assertEquals(FileWatchTask.DELETE, eventList.get(0).get(FileWatchTask.KIND));
+            assertEquals(0, eventManager.getPendingCount());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_lingerMergesEvents() throws Exception {
+        final EventManager eventManager = new EventManager(100, 1, false, "/tmp", 500L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventMerger(new FileEventMerger());
+        eventManager.start();
+        try {
+            eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/a.txt"));
+            eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/b.txt"));
+            eventManager.submit();
+            Thread.sleep(200L);
+            eventManager.addEvent(createEvent(FileWatchTask.DELETE, "/tmp/a.txt"));
+            eventManager.addEvent(createEvent(FileWatchTask.MODIFY, "/tmp/b.txt"));
+            eventManager.submit();
+
+            assertTrue(eventManager.flush(5000L));
+            // create-delete cancels out and create-modify is a create
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(1, eventList.size());
+            assertEquals("/tmp/b.txt", eventList.get(0).get(FileWatchTask.FILE));
+            assertEquals(FileWatchTask.CREATE, eventList.get(0).get(FileWatchTask.KIND));
+            assertEquals(0, eventManager.getPendingCount());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    private void assertSettled(final EventManager eventManager) {
+        assertTrue(eventManager.flush(5000L));
+        assertEquals(0, eventManager.getPendingCount());
+        assertEquals(0, eventManager.getInFlightCount());
+        assertEquals(0, eventManager.getQueuedCount());
+    }
+
+    @Test
+    public void test_settleSuccess() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(100)) {
+                eventManager.addEvent(event);
+            }
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            assertEquals(100, sentEvents(operation).size());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleError() throws Exception {
+        final String backupDirectory = temporaryFolder.newFolder().getAbsolutePath();
+        final EventManager eventManager = new EventManager(10, 2, true, backupDirectory, 100L);
+        final StubOperation operation = new StubOperation();
+        operation.failed = true;
+        eventManager.setOperation(operation);
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(100)) {
+                eventManager.addEvent(event);
+            }
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            assertEquals(100, sentEvents(operation).size());
+            // the failed events are settled once they are backed up
+            int backedUpNum = 0;
+            while (eventManager.backupLog.hasNext()) {
+                backedUpNum += eventManager.backupLog.next().size();
+            }
+            assertEquals(100, backedUpNum);
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleFiltered() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        // drops the even files
+        eventManager.addEventFilter(event -> {
+            final String path = (String) event.get(FileWatchTask.FILE);
+            return Integer.parseInt(path.replaceAll("\\D", "")) % 2 == 0 ? null : event;
+        });
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(100)) {
+                eventManager.addEvent(event);
+            }
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            assertEquals(50, sentEvents(operation).size());
+            assertEquals(50, eventManager.getFilteredCount());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleMerged() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventMerger(new FileEventMerger());
+        // queued before the monitoring thread starts, so the events are merged in the queue
+        for (int i = 0; i < 10; i++) {
+            eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+            eventManager.addEvent(createEvent(FileWatchTask.MODIFY, "/tmp/" + i + ".txt"));
+            eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/c" + i + ".txt"));
+            eventManager.addEvent(createEvent(FileWatchTask.DELETE, "/tmp/c" + i + ".txt"));
+        }
+        // the merged away events are settled at once
+        assertEquals(10, eventManager.getPendingCount());
+        assertEquals(10, eventManager.getQueuedCount());
+        eventManager.start();
+        try {
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(10, eventList.size());
+            for (final Event event : eventList) {
+                assertEquals(FileWatchTask.CREATE, event.get(FileWatchTask.KIND));
+            }
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleDropNewest() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventQueueCapacity(5, OverflowPolicy.DROP_NEWEST, null);
+        for (final Event event : createEvents(20)) {
+            eventManager.addEvent(event);
+        }
+        assertEquals(15, eventManager.getDroppedNewestCount());
+        eventManager.start();
+        try {
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(5, eventList.size());
+            assertEquals(Paths.get("/tmp/0.txt").toString(), eventList.get(0).get(FileWatchTask.FILE));
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleDropOldest() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventQueueCapacity(5, OverflowPolicy.DROP_OLDEST, null);
+        for (final Event event : createEvents(20)) {
+            eventManager.addEvent(event);
+        }
+        assertEquals(15, eventManager.getDroppedOldestCount());
+        eventManager.start();
+        try {
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(5, eventList.size());
+            assertEquals(Paths.get("/tmp/15.txt").toString(), eventList.get(0).get(FileWatchTask.FILE));
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleSpill() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventQueueCapacity(5, OverflowPolicy.SPILL, temporaryFolder.newFolder().getAbsolutePath());
+        final List<Event> addedList = createEvents(20);
+        for (int i = 0; i < addedList.size(); i++) {
+            final Event event = addedList.get(i);
+            event.setSource(i % 2 == 0 ? Event.SOURCE_WATCHER : Event.SOURCE_SCANNER);
+            eventManager.addEvent(event);
+        }
+        assertEquals(15, eventManager.getSpilledCount());
+        assertEquals(5, eventManager.getQueuedCount());
+        assertEquals(20, eventManager.getPendingCount());
+        eventManager.start();
+        try {
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(20, eventList.size());
+            for (int i = 0; i < eventList.size(); i++) {
+                // the spilled events are restored in order, with their source
+                assertEquals(Paths.get("/tmp/" + i + ".txt").toString(), eventList.get(i).get(FileWatchTask.FILE));
+                assertEquals(i % 2 == 0 ? Event.SOURCE_WATCHER : Event.SOURCE_SCANNER, eventList.get(i).getSource());
+            }
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleBlock() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventQueueCapacity(5, OverflowPolicy.BLOCK, null);
+        final Thread producer = new Thread(() -> {
+            for (final Event event : createEvents(20)) {
+                eventManager.addEvent(event);
+            }
+        });
+        producer.start();
+        // the producer waits for the full queue until the manager takes the events
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (eventManager.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, eventManager.getBlockedCount());
+        assertTrue(producer.isAlive());
+        eventManager.start();
+        try {
+            eventManager.submit();
+            producer.join(5000L);
+            assertFalse(producer.isAlive());
+
+            assertSettled(eventManager);
+            final List<Event> eventList = sentEvents(operation);
+            assertEquals(20, eventList.size());
+            for (int i = 0; i < eventList.size(); i++) {
+                assertEquals(Paths.get("/tmp/" + i + ".txt").toString(), eventList.get(i).get(FileWatchTask.FILE));
+            }
+            assertEquals(0, eventManager.getDroppedNewestCount());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleThrown() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        operation.thrown = true;
+        eventManager.setOperation(operation);
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(100)) {
+                eventManager.addEvent(event);
+            }
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            assertTrue(operation.batchList.isEmpty());
+            assertFalse(eventManager.isExecuting());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_debounceWatcherOnly() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setQuietPeriod(60000L, 60000L);
+        eventManager.setEventQueueCapacity(10, OverflowPolicy.BLOCK, null);
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(20)) {
+                event.setSource(Event.SOURCE_SCANNER);
+                eventManager.addEvent(event);
+            }
+            eventManager.submit();
+            // scanned events are not held
+            assertSettled(eventManager);
+            assertEquals(20, sentEvents(operation).size());
+
+            // watcher events are held, and the keys over the capacity are queued
+            for (int i = 0; i < 15; i++) {
+                eventManager.addEvent(createEvent(FileWatchTask.MODIFY, "/tmp/w" + i + ".txt"));
+            }
+            eventManager.submit();
+            assertFalse(eventManager.flush(500L));
+            assertEquals(10, eventManager.eventDebouncer.size());
+            assertEquals(25, sentEvents(operation).size());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_journalReplay() throws Exception {
+        final String journalDirectory = temporaryFolder.newFolder().getAbsolutePath();
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        // the batches are sent, but never acknowledged
+        operation.silent = true;
+        eventManager.setOperation(operation);
+        eventManager.useJournal(journalDirectory);
+        eventManager.start();
+        try {
+            for (final Event event : createEvents(100)) {
+                eventManager.addEvent(event);
+            }
+            final long timeout = System.currentTimeMillis() + 5000L;
+            while (sentEvents(operation).size() < 100 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10L);
+            }
+            assertEquals(100, sentEvents(operation).size());
+            assertFalse(eventManager.flush(100L));
+        } finally {
+            eventManager.stop();
+        }
+
+        // the unacknowledged events are replayed after a restart
+        final EventManager restarted = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation restartedOperation = new StubOperation();
+        restarted.setOperation(restartedOperation);
+        restarted.useJournal(journalDirectory);
+        restarted.start();
+        try {
+            assertSettled(restarted);
+            final List<Event> eventList = sentEvents(restartedOperation);
+            assertEquals(100, eventList.size());
+            for (final Event event : eventList) {
+                assertEquals(Event.SOURCE_RESTORE, event.getSource());
+            }
+        } finally {
+            restarted.stop();
+        }
+
+        // and committed once they are sent
+        final EventManager replayed = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation replayedOperation = new StubOperation();
+        replayed.setOperation(replayedOperation);
+        replayed.useJournal(journalDirectory);
+        replayed.start();
+        try {
+            assertSettled(replayed);
+            assertTrue(replayedOperation.batchList.isEmpty());
+        } finally {
+            replayed.stop();
+        }
+    }
+
+    @Test
+    public void test_journalBounded() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final StubOperation operation = new StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.setEventQueueCapacity(5, OverflowPolicy.DROP_NEWEST, null);
+        eventManager.useJournal(temporaryFolder.newFolder().getAbsolutePath());
+        eventManager.eventJournal.setCapacity(5);
+        // the persist thread is not started, so the events wait in the next group
+        for (final Event event : createEvents(20)) {
+            eventManager.addEvent(event);
+        }
+        assertEquals(5, eventManager.eventJournal.size());
+        assertEquals(15, eventManager.getDroppedNewestCount());
+        assertEquals(5, eventManager.getPendingCount());
+        eventManager.start();
+        try {
+            assertSettled(eventManager);
+            assertEquals(5, sentEvents(operation).size());
+        } finally {
+            eventManager.stop();
+        }
+    }
+
+    @Test
+    public void test_settleVirtualThreads() throws Exception {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 100L);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final List<Boolean> virtualList = new CopyOnWriteArrayList<>();
+        final StubOperation operation = new StubOperation() {
+            @Override
+            public void excute(final List<Event> events) {
+                virtualList.add(Thread.currentThread().isVirtual());
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20L);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                super.excute(events);
+            }
+        };
+        eventManager.setOperation(operation);
+        eventManager.useVirtualThreads(2);
+        for (final Event event : createEvents(100)) {
+            eventManager.addEvent(event);
+        }
+        eventManager.start();
+        try {
+            eventManager.submit();
+
+            assertSettled(eventManager);
+            assertEquals(100, sentEvents(operation).size());
+            assertEquals(10, virtualList.size());
+            assertFalse(virtualList.contains(Boolean.FALSE));
+            assertTrue(maxInFlight.get() <= 2);
+        } finally {
+            eventManager.stop();
+        }
+        assertTrue(eventManager.executorService.isShutdown());
+        assertTrue(eventManager.executorService.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    static class StubOperation implements Operation {
+        final List<OperationListener> listenerList = new CopyOnWriteArrayList<>();
+
+        final List<List<Event>> batchList = new CopyOnWriteArrayList<>();
+
+        volatile boolean failed = false;
+
+        volatile boolean thrown = false;
+
+        volatile boolean silent = false;
+
+        @Override
+        public void addOperationListener(final OperationListener listener) {
+            listenerList.add(listener);
+        }
+
+        @Override
+        public void excute(final List<Event> events) {
+            if (thrown) {
+                throw new IllegalStateException("excute failed.");
+            }
+            batchList.add(new ArrayList<>(events));
+            if (silent) {
+                return;
+            }
+            for (final OperationListener listener : listenerList) {
+                if (failed) {
+                    listener.errorHandler(events);
+                } else {
+                    listener.successHandler(events);
+                }
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codelibs.empros.agent.watcher.file.FileEventMerger;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class EventPipelineTest {
+
+    private EventPipeline.EventSlot slot(final Event event) {
+        final EventPipeline.EventSlot slot = new EventPipeline.EventSlot();
+        slot.event = event;
+        return slot;
+    }
+
+    @Test
+    public void test_batchKeepsLatestEvent() {
+        final EventManager eventManager = new EventManager(100, 1, false, "/tmp", 0L);
+        final EventPipeline.BatchHandler batchHandler = new EventPipeline(eventManager, 16, "blocking").new BatchHandler();
+        eventManager.pendingCount.addAndGet(3);
+        final Event deleteEvent = createEvent(FileWatchTask.DELETE, "/tmp/a.txt");
+
+        batchHandler.onEvent(slot(createEvent(FileWatchTask.CREATE, "/tmp/a.txt")), 0, false);
+        batchHandler.onEvent(slot(createEvent(FileWatchTask.CREATE, "/tmp/b.txt")), 1, false);
+        final EventPipeline.EventSlot lastSlot = slot(deleteEvent);
+        batchHandler.onEvent(lastSlot, 2, true);
+
+        assertEquals(2, lastSlot.batch.size());
+        assertEquals("/tmp/b.txt", lastSlot.batch.get(0).get(FileWatchTask.FILE));
+        assertSame(deleteEvent, lastSlot.batch.get(1));
+        // the superseded create is settled
+        assertEquals(2, eventManager.getPendingCount());
+    }
+
+    @Test
+    public void test_batchMergesEvents() {
+        final EventManager eventManager = new EventManager(100, 1, false, "/tmp", 0L);
+        eventManager.setEventMerger(new FileEventMerger());
+        final EventPipeline.BatchHandler batchHandler = new EventPipeline(eventManager, 16, "blocking").new BatchHandler();
+        eventManager.pendingCount.addAndGet(2);
+
+        batchHandler.onEvent(slot(createEvent(FileWatchTask.CREATE, "/tmp/a.txt")), 0, false);
+        final EventPipeline.EventSlot lastSlot = slot(createEvent(FileWatchTask.DELETE, "/tmp/a.txt"));
+        batchHandler.onEvent(lastSlot, 1, true);
+
+        assertNull(lastSlot.batch);
+        assertEquals(0, eventManager.getPendingCount());
+    }
+
+    @Test
+    public void test_pipeline() {
+        final EventManager eventManager = new EventManager(10, 2, false, "/tmp", 0L);
+        final EventManagerTest.StubOperation operation = new EventManagerTest.StubOperation();
+        eventManager.setOperation(operation);
+        eventManager.addEventFilter(event -> "/tmp/0.txt".equals(event.get(FileWatchTask.FILE)) ? null : event);
+        eventManager.usePipeline(64, "blocking");
+        eventManager.start();
+        try {
+            for (int i = 0; i < 100; i++) {
+                eventManager.addEvent(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+            }
+            assertTrue(eventManager.flush(5000L));
+        } finally {
+            eventManager.stop();
+        }
+
+        final Set<Object> pathSet = new HashSet<>();
+        for (final List<Event> batch : operation.batchList) {
+            assertTrue(batch.size() <= 10);
+            for (final Event event : batch) {
+                pathSet.add(event.get(FileWatchTask.FILE));
+            }
+        }
+        assertEquals(99, pathSet.size());
+        assertEquals(1, eventManager.getFilteredCount());
+        assertEquals(0, eventManager.getPendingCount());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvents;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventSpillerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void test_commitAfterWrite() throws Exception {
+        final EventLog journal = new EventLog(temporaryFolder.newFolder().getAbsolutePath(), "journal-", 1024 * 1024,
+                -1);
+        final List<Event> events = createEvents(3);
+        final long offset = journal.appendInUse(events);
+
+        final List<Event> writtenList = new ArrayList<>();
+        final EventSpiller spiller = new EventSpiller(temporaryFolder.newFolder().getAbsolutePath(), 2);
+        spiller.setWrittenHandler(eventList -> {
+            writtenList.addAll(eventList);
+            journal.commit(eventList);
+        });
+        for (final Event event : events) {
+            spiller.spill(event);
+        }
+
+        // the written chunk is committed in the journal, the buffered event is not
+        assertEquals(2, writtenList.size());
+        assertEquals(1, journal.outstandingMap.get(offset).intValue());
+
+        final List<Event> restored = spiller.restore();
+        assertEquals(2, restored.size());
+        assertEquals("/tmp/0.txt", restored.get(0).get(FileWatchTask.FILE));
+        assertNull(restored.get(0).getEventLog());
+        final List<Event> buffered = spiller.restore();
+        assertEquals(1, buffered.size());
+        assertSame(events.get(2), buffered.get(0));
+        assertSame(journal, buffered.get(0).getEventLog());
+        assertTrue(spiller.isEmpty());
+
+        // settled after the restore
+        journal.commit(buffered.get(0));
+        assertNull(journal.outstandingMap.get(offset));
+        spiller.close();
+        journal.close();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+
+/**
+ * EventTestUtil creates file events as the file watcher does.
+ */
+public final class EventTestUtil {
+
+    private EventTestUtil() {
+    }
+
+    public static Event createEvent(final String kind, final String path) {
+        final Event event = FileWatchTask.createEvent(kind, Paths.get(path), System.currentTimeMillis(),
+                Collections.emptyList());
+        event.setSource(Event.SOURCE_WATCHER);
+        return event;
+    }
+
+    /**
+     * Creates events creating /tmp/0.txt, /tmp/1.txt and so on.
+     */
+    public static List<Event> createEvents(final int size) {
+        final List<Event> eventList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            eventList.add(createEvent(FileWatchTask.CREATE, "/tmp/" + i + ".txt"));
+        }
+        return eventList;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class PartitionedDispatcherTest {
+
+    private static final String SEQ = "seq";
+
+    private Event createEvent(final String path, final int seq) {
+        final Event event = FileWatchTask.createEvent(FileWatchTask.MODIFY, Paths.get(path), System.currentTimeMillis(),
+                Collections.emptyList());
+        event.put(SEQ, seq);
+        return event;
+    }
+
+    private void awaitSize(final List<?> list, final int size) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 10000L;
+        while (list.size() < size && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    public void test_partitions() throws Exception {
+        final List<List<Event>> batchList = new CopyOnWriteArrayList<>();
+        final List<Event> handledList = new CopyOnWriteArrayList<>();
+        final PartitionedDispatcher dispatcher = new PartitionedDispatcher(batch -> {
+            batchList.add(batch);
+            handledList.addAll(batch);
+        }, 4, 2, false);
+        dispatcher.start();
+        try {
+            final List<Event> eventList = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                eventList.add(createEvent("/tmp/" + i + ".txt", 0));
+            }
+            dispatcher.dispatch(eventList);
+            awaitSize(handledList, 100);
+
+            assertEquals(100, handledList.size());
+            assertTrue(batchList.size() <= 4);
+            // every batch holds the events of one lane
+            for (final List<Event> batch : batchList) {
+                final int laneIndex = dispatcher.getLaneIndex(batch.get(0));
+                for (final Event event : batch) {
+                    assertEquals(laneIndex, dispatcher.getLaneIndex(event));
+                }
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void test_orderPerKey() throws Exception {
+        final Map<Integer, AtomicInteger> activeMap = new ConcurrentHashMap<>();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger totalActive = new AtomicInteger();
+        final AtomicInteger maxTotalActive = new AtomicInteger();
+        final List<Event> handledList = new CopyOnWriteArrayList<>();
+        final PartitionedDispatcher[] holder = new PartitionedDispatcher[1];
+        final PartitionedDispatcher dispatcher = new PartitionedDispatcher(batch -> {
+            final AtomicInteger active = activeMap.computeIfAbsent(holder[0].getLaneIndex(batch.get(0)),
+                    k -> new AtomicInteger());
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            maxTotalActive.accumulateAndGet(totalActive.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handledList.addAll(batch);
+            totalActive.decrementAndGet();
+            active.decrementAndGet();
+        }, 4, 2, false);
+        holder[0] = dispatcher;
+        dispatcher.start();
+        try {
+            for (int seq = 0; seq < 50; seq++) {
+                final List<Event> eventList = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    eventList.add(createEvent("/tmp/" + i + ".txt", seq));
+                }
+                dispatcher.dispatch(eventList);
+            }
+            awaitSize(handledList, 1000);
+
+            assertEquals(1000, handledList.size());
+            // one batch at a time per lane, while the lanes run in parallel
+            assertEquals(1, maxActive.get());
+            assertTrue(maxTotalActive.get() > 1);
+            final Map<Object, Integer> lastSeqMap = new HashMap<>();
+            for (final Event event : handledList) {
+                final int seq = (Integer) event.get(SEQ);
+                final Integer lastSeq = lastSeqMap.put(event.get(FileWatchTask.FILE), seq);
+                assertTrue(lastSeq == null || lastSeq < seq);
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void test_failedBatch() throws Exception {
+        final List<Event> handledList = new CopyOnWriteArrayList<>();
+        final PartitionedDispatcher dispatcher = new PartitionedDispatcher(batch -> {
+            if ((Integer) batch.get(0).get(SEQ) == 0) {
+                throw new IllegalStateException("batch failed.");
+            }
+            handledList.addAll(batch);
+        }, 1, 2, false);
+        dispatcher.start();
+        try {
+            dispatcher.dispatch(Collections.singletonList(createEvent("/tmp/a.txt", 0)));
+            dispatcher.dispatch(Collections.singletonList(createEvent("/tmp/a.txt", 1)));
+            awaitSize(handledList, 1);
+
+            // the lane keeps running after a batch fails
+            assertEquals(1, handledList.size());
+            assertEquals(1, handledList.get(0).get(SEQ));
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void test_stopDrainsLanes() throws Exception {
+        final List<Event> handledList = new CopyOnWriteArrayList<>();
+        final PartitionedDispatcher dispatcher = new PartitionedDispatcher(batch -> {
+            try {
+                Thread.sleep(20L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handledList.addAll(batch);
+        }, 2, 4, true);
+        dispatcher.start();
+        for (int seq = 0; seq < 4; seq++) {
+            dispatcher.dispatch(Collections.singletonList(createEvent("/tmp/a.txt", seq)));
+        }
+        dispatcher.stop();
+        awaitSize(handledList, 4);
+
+        // the queued batches are handled after the stop
+        assertEquals(4, handledList.size());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.event;
+
+import static org.codelibs.empros.agent.event.EventTestUtil.createEvents;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RestoreSchedulerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<List<Event>> restoredList = new CopyOnWriteArrayList<>();
+
+    private EventLog eventLog;
+
+    private RestoreScheduler restoreScheduler;
+
+    @After
+    public void tearDown() {
+        if (restoreScheduler != null) {
+            restoreScheduler.stop();
+        }
+        if (eventLog != null) {
+            eventLog.close();
+        }
+    }
+
+    private EventLog createEventLog(final int recordNum, final int recordSize) throws Exception {
+        eventLog = new EventLog(temporaryFolder.newFolder().getAbsolutePath(), "evlog-", 1024 * 1024, 0);
+        for (int i = 0; i < recordNum; i++) {
+            eventLog.append(createEvents(recordSize));
+        }
+        return eventLog;
+    }
+
+    private void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void test_throttle() throws Exception {
+        createEventLog(10, 2);
+        // 40 events per second, so 20 events take about half a second
+        restoreScheduler = new RestoreScheduler(eventLog, eventList -> {
+            restoredList.add(eventList);
+            restoreScheduler.onSettled(eventList.size());
+        }, 100, 40L);
+        restoreScheduler.start();
+        assertTrue(restoreScheduler.isBackupPending());
+
+        final long startTime = System.currentTimeMillis();
+        restoreScheduler.onRestored();
+        await(() -> restoreScheduler.getTotalRestoredCount() == 20);
+        final long elapsed = System.currentTimeMillis() - startTime;
+
+        assertTrue("elapsed: " + elapsed, elapsed >= 400L);
+        assertEquals(10, restoredList.size());
+        assertEquals(0, restoreScheduler.getRestoredCount());
+        await(() -> !restoreScheduler.isBackupPending());
+    }
+
+    @Test
+    public void test_maxRestoredEvents() throws Exception {
+        createEventLog(5, 2);
+        // restored events are not settled until the test does it
+        restoreScheduler = new RestoreScheduler(eventLog, restoredList::add, 4, 0L);
+        restoreScheduler.start();
+        Thread.sleep(100L);
+        assertEquals(0, restoreScheduler.getTotalRestoredCount());
+
+        restoreScheduler.onRestored();
+        await(() -> restoreScheduler.getTotalRestoredCount() == 4);
+        Thread.sleep(100L);
+        assertEquals(4, restoreScheduler.getTotalRestoredCount());
+        assertEquals(4, restoreScheduler.getRestoredCount());
+
+        restoreScheduler.onSettled(2);
+        await(() -> restoreScheduler.getTotalRestoredCount() == 6);
+        Thread.sleep(100L);
+        assertEquals(6, restoreScheduler.getTotalRestoredCount());
+        assertEquals(4, restoreScheduler.getRestoredCount());
+
+        restoreScheduler.onSettled(4);
+        await(() -> restoreScheduler.getTotalRestoredCount() == 10);
+        assertEquals(5, restoredList.size());
+        assertEquals(4, restoreScheduler.getRestoredCount());
+    }
+
+    @Test
+    public void test_resumeAfterFailure() throws Exception {
+        createEventLog(5, 2);
+        restoreScheduler = new RestoreScheduler(eventLog, eventList -> {
+            restoredList.add(eventList);
+            if (restoredList.size() == 2) {
+                // the destination fails again while the second record is sent
+                restoreScheduler.onBackedUp();
+            }
+            restoreScheduler.onSettled(eventList.size());
+        }, 100, 0L);
+        restoreScheduler.start();
+
+        restoreScheduler.onRestored();
+        await(() -> restoreScheduler.getTotalRestoredCount() == 4);
+        Thread.sleep(100L);
+        assertEquals(4, restoreScheduler.getTotalRestoredCount());
+        assertTrue(restoreScheduler.isBackupPending());
+
+        // a success after the failure resumes the restore where it stopped
+        restoreScheduler.onSuccess();
+        await(() -> restoreScheduler.getTotalRestoredCount() == 10);
+        assertEquals(5, restoredList.size());
+        assertEquals(0, restoreScheduler.getRestoredCount());
+        await(() -> !restoreScheduler.isBackupPending());
+        assertFalse(eventLog.hasNext());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void test_openAndClose() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, 100L, 1000L);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(150L);
+        // only one probe is let through
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void test_failedProbe() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1, 100L, 1000L);
+        circuitBreaker.onFailure();
+        Thread.sleep(150L);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.isOpen());
+        // the open timeout is doubled
+        Thread.sleep(150L);
+        assertFalse(circuitBreaker.allowRequest());
+        Thread.sleep(100L);
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.trip();
+        assertFalse(circuitBreaker.allowRequest());
+        circuitBreaker.halfOpen();
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void test_interval() {
+        final RetryPolicy retryPolicy = new RetryPolicy(5, 100L, 1000L, 0.2, 10);
+        for (int i = 0; i < 100; i++) {
+            final long interval = retryPolicy.getInterval(2);
+            assertTrue(interval >= 0 && interval <= 400L);
+            assertTrue(retryPolicy.getInterval(10) <= 1000L);
+            assertTrue(retryPolicy.getInterval(100) <= 1000L);
+        }
+    }
+
+    @Test
+    public void test_budget() {
+        final RetryPolicy retryPolicy = new RetryPolicy(5, 100L, 1000L, 0.5, 2);
+        assertFalse(retryPolicy.tryRetry(5));
+        assertTrue(retryPolicy.tryRetry(0));
+        assertTrue(retryPolicy.tryRetry(1));
+        // the budget is spent
+        assertFalse(retryPolicy.tryRetry(0));
+        retryPolicy.onRequest();
+        assertFalse(retryPolicy.tryRetry(0));
+        retryPolicy.onRequest();
+        assertTrue(retryPolicy.tryRetry(0));
+        for (int i = 0; i < 10; i++) {
+            retryPolicy.onRequest();
+        }
+        assertEquals(2.0, retryPolicy.getBudget(), 0.0);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+import org.codelibs.core.io.InputStreamUtil;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class AsyncRestApiOperationTest {
+
+    private HttpServer server;
+
+    private final AtomicInteger postCount = new AtomicInteger();
+
+    // returns true to fail the request with the body
+    private volatile Predicate<String> failure = body -> false;
+
+    // holds the responses while the test blocks them
+    private volatile boolean blocking = false;
+
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private final List<Event> succeededList = new CopyOnWriteArrayList<>();
+
+    private final List<Event> failedList = new CopyOnWriteArrayList<>();
+
+    private AsyncRestApiOperation operation;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(18091), 0);
+        server.createContext("/events", exchange -> {
+            int status = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                postCount.incrementAndGet();
+                if (blocking) {
+                    try {
+                        released.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                final String body = new String(InputStreamUtil.getBytes(in), StandardCharsets.UTF_8);
+                if (failure.test(body)) {
+                    status = 500;
+                }
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+
+        operation = new AsyncRestApiOperation("asyncrestapi-test.properties");
+        operation.addOperationListener(new OperationListener() {
+            @Override
+            public void successHandler(final List<Event> eventList) {
+                succeededList.addAll(eventList);
+            }
+
+            @Override
+            public void errorHandler(final List<Event> eventList) {
+                failedList.addAll(eventList);
+            }
+
+            @Override
+            public void restoredHandler() {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        operation.destroy();
+        server.stop(0);
+    }
+
+    private List<Event> createEvents(final int size) {
+        final List<Event> eventList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            eventList.add(FileWatchTask.createEvent(FileWatchTask.CREATE, Paths.get("/tmp/" + i + ".txt"),
+                    System.currentTimeMillis(), Collections.emptyList()));
+        }
+        return eventList;
+    }
+
+    @Test
+    public void test_callbacks() {
+        operation.excute(createEvents(35));
+        // the listeners are called before excute returns
+        assertEquals(35, succeededList.size());
+        assertEquals(0, failedList.size());
+        assertEquals(4, postCount.get());
+    }
+
+    @Test
+    public void test_retry() {
+        final AtomicInteger failureCount = new AtomicInteger();
+        failure = body -> failureCount.incrementAndGet() <= 2;
+        operation.excute(createEvents(5));
+        assertEquals(5, succeededList.size());
+        assertEquals(0, failedList.size());
+        assertEquals(3, postCount.get());
+    }
+
+    @Test
+    public void test_partialFailure() {
+        failure = body -> body.contains("12.txt");
+        operation.excute(createEvents(30));
+        assertEquals(20, succeededList.size());
+        assertEquals(10, failedList.size());
+        for (final Event event : failedList) {
+            final int index = Integer.parseInt(((String) event.get(FileWatchTask.FILE)).replaceAll("\\D", ""));
+            assertTrue(index >= 10 && index < 20);
+        }
+        // the failed chunk is retried maxRetryCount times
+        assertEquals(5, postCount.get());
+    }
+
+    @Test(timeout = 30000L)
+    public void test_retriesWithAllPermitsTaken() {
+        // the first attempt of every chunk fails
+        final Set<String> bodySet = ConcurrentHashMap.newKeySet();
+        failure = body -> bodySet.add(body);
+        operation.excute(createEvents(200));
+        assertEquals(200, succeededList.size());
+        assertEquals(40, postCount.get());
+    }
+
+    @Test(timeout = 30000L)
+    public void test_destroyInFlight() throws Exception {
+        blocking = true;
+        final Thread thread = new Thread(() -> operation.excute(createEvents(5)));
+        thread.start();
+        while (postCount.get() == 0) {
+            Thread.sleep(10L);
+        }
+
+        // the request in flight is aborted instead of waiting for the response
+        operation.destroy();
+        thread.join(5000L);
+        assertFalse(thread.isAlive());
+        assertEquals(0, succeededList.size());
+        assertEquals(5, failedList.size());
+        assertEquals(1, postCount.get());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.codelibs.core.io.InputStreamUtil;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class CompressedEntityTest {
+
+    @Test
+    public void test_compress() throws Exception {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY,
+                    Paths.get("/data/share/projects/p" + (i % 10) + "/docs/file" + i + ".txt"), 1000L + i,
+                    Collections.emptyList()));
+        }
+        final EventJsonEntity jsonEntity = new EventJsonEntity(events);
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        jsonEntity.writeTo(json);
+
+        final CompressedEntity gzipEntity = new CompressedEntity(jsonEntity, CompressedEntity.GZIP, 6);
+        assertEquals("gzip", gzipEntity.getContentEncoding().getValue());
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        gzipEntity.writeTo(gzip);
+        assertTrue(gzip.size() * 5 < json.size());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+            assertEquals(json.toString("UTF-8"), new String(InputStreamUtil.getBytes(in), "UTF-8"));
+        }
+
+        final ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        new CompressedEntity(jsonEntity, CompressedEntity.DEFLATE, 1).writeTo(deflate);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflate.toByteArray()))) {
+            assertEquals(json.toString("UTF-8"), new String(InputStreamUtil.getBytes(in), "UTF-8"));
+        }
+
+        // the content is compressed as it is read
+        try (InputStream in = new GZIPInputStream(gzipEntity.getContent())) {
+            assertEquals(json.toString("UTF-8"), new String(InputStreamUtil.getBytes(in), "UTF-8"));
+        }
+        try (InputStream in = new InflaterInputStream(
+                new CompressedEntity(jsonEntity, CompressedEntity.DEFLATE, 1).getContent())) {
+            assertEquals(json.toString("UTF-8"), new String(InputStreamUtil.getBytes(in), "UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+
+/**
+ * Compares EventJsonEntity with generateJson and StringEntity, writing a
+ * batch to a stream that discards it. Run the main method with the test
+ * classpath.
+ */
+public class EventJsonBenchmark {
+
+    private static final int EVENTS = 10000;
+
+    private static final int ROUNDS = 100;
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    public static void main(final String[] args) throws Exception {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY,
+                    Paths.get("/data/share/projects/p" + (i % 50) + "/docs/file" + i + ".txt"),
+                    System.currentTimeMillis(), Collections.emptyList()));
+        }
+
+        for (int n = 0; n < 2; n++) {
+            // the first pass is a warm up
+            long time = 0;
+            long allocated = 0;
+            long size = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                final long bytes = allocatedBytes();
+                final long start = System.nanoTime();
+                final HttpEntity entity = new StringEntity(generateJson(events), "UTF-8");
+                size = entity.getContentLength();
+                entity.writeTo(NULL_OUTPUT);
+                time += System.nanoTime() - start;
+                allocated += allocatedBytes() - bytes;
+            }
+            print("generateJson", size, time, allocated);
+
+            time = 0;
+            allocated = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                final long bytes = allocatedBytes();
+                final long start = System.nanoTime();
+                final HttpEntity entity = new EventJsonEntity(events);
+                size = entity.getContentLength();
+                entity.writeTo(NULL_OUTPUT);
+                time += System.nanoTime() - start;
+                allocated += allocatedBytes() - bytes;
+            }
+            print("EventJsonEntity", size, time, allocated);
+        }
+    }
+
+    // the encoder RestApiOperation used before EventJsonEntity
+    static String generateJson(final List<Event> events) {
+        final StringBuilder jsonBuf = new StringBuilder(1000);
+        jsonBuf.append('[');
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                jsonBuf.append(',');
+            }
+            jsonBuf.append('{');
+            boolean isFirst = true;
+            for (final Map.Entry<String, Object> entry : events.get(i).entrySet()) {
+                if (isFirst) {
+                    isFirst = false;
+                } else {
+                    jsonBuf.append(',');
+                }
+                jsonBuf.append('\"');
+                jsonBuf.append(StringEscapeUtils.escapeEcmaScript(entry.getKey()));
+                jsonBuf.append("\":\"");
+                jsonBuf.append(StringEscapeUtils.escapeEcmaScript(entry.getValue().toString().replace("\'", "")));
+                jsonBuf.append('\"');
+            }
+            jsonBuf.append('}');
+        }
+        jsonBuf.append(']');
+        return jsonBuf.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static void print(final String name, final long size, final long time, final long allocated) {
+        final long total = (long) EVENTS * ROUNDS;
+        System.out.printf("%-16s %8d bytes/batch, %,10d events/s, %,10d bytes allocated/batch%n", name, size,
+                total * 1000000000L / time, allocated / ROUNDS);
+    }
+}
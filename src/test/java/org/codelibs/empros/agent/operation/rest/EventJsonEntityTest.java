@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.core.io.InputStreamUtil;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.Test;
+
+public class EventJsonEntityTest {
+
+    private String toJson(final List<Event> events) throws Exception {
+        final EventJsonEntity entity = new EventJsonEntity(events);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertEquals(out.size(), entity.getContentLength());
+        // the content stream encodes the same bytes
+        try (InputStream in = entity.getContent()) {
+            assertEquals(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+                    new String(InputStreamUtil.getBytes(in), StandardCharsets.US_ASCII));
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void test_sameAsGenerateJson() throws Exception {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(FileWatchTask.createEvent(FileWatchTask.MODIFY, Paths.get("/tmp/dir" + i + "/file" + i + ".txt"),
+                    i * 1000000007L, Collections.emptyList()));
+        }
+        final Event event = new Event();
+        event.put("key'\"/\\", "it's \"a\" /\\ \b\f\n\r\t\u0000\u001f\u007f\u0080あ😀\ud800");
+        event.put("number", -123L);
+        event.put("min", Long.MIN_VALUE);
+        events.add(event);
+        assertEquals(EventJsonBenchmark.generateJson(events), toJson(events));
+        assertEquals("[]", toJson(Collections.emptyList()));
+
+        final StringBuilder buf = new StringBuilder();
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            buf.append(c);
+        }
+        final Event allChars = new Event();
+        allChars.put("chars", buf.toString());
+        assertEquals(EventJsonBenchmark.generateJson(Collections.singletonList(allChars)), toJson(Collections.singletonList(allChars)));
+    }
+}
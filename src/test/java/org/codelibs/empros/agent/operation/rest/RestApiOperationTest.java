@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.operation.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.codelibs.core.io.InputStreamUtil;
+import org.codelibs.empros.agent.event.Event;
+import org.codelibs.empros.agent.listener.OperationListener;
+import org.codelibs.empros.agent.watcher.file.FileWatchTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class RestApiOperationTest {
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private final AtomicInteger postCount = new AtomicInteger();
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    private final AtomicInteger maxActiveCount = new AtomicInteger();
+
+    // returns true to fail the request with the body
+    private volatile Predicate<String> failure = body -> false;
+
+    private final List<Event> succeededList = new CopyOnWriteArrayList<>();
+
+    private final List<Event> failedList = new CopyOnWriteArrayList<>();
+
+    private RestApiOperation operation;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(18092), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/events", exchange -> {
+            int status = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                postCount.incrementAndGet();
+                maxActiveCount.accumulateAndGet(activeCount.incrementAndGet(), Math::max);
+                try {
+                    final String body = new String(InputStreamUtil.getBytes(exchange.getRequestBody()),
+                            StandardCharsets.UTF_8);
+                    Thread.sleep(50L);
+                    if (failure.test(body)) {
+                        status = 500;
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    activeCount.decrementAndGet();
+                }
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+
+        operation = createOperation("restapi-test.properties");
+    }
+
+    private RestApiOperation createOperation(final String propertiesPath) {
+        final RestApiOperation operation = new RestApiOperation(propertiesPath);
+        operation.addOperationListener(new OperationListener() {
+            @Override
+            public void successHandler(final List<Event> eventList) {
+                succeededList.addAll(eventList);
+            }
+
+            @Override
+            public void errorHandler(final List<Event> eventList) {
+                failedList.addAll(eventList);
+            }
+
+            @Override
+            public void restoredHandler() {
+            }
+        });
+        return operation;
+    }
+
+    @After
+    public void tearDown() {
+        operation.destroy();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private List<Event> createEvents(final int size) {
+        final List<Event> eventList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            eventList.add(FileWatchTask.createEvent(FileWatchTask.CREATE, Paths.get("/tmp/" + i + ".txt"),
+                    System.currentTimeMillis(), Collections.emptyList()));
+        }
+        return eventList;
+    }
+
+    @Test
+    public void test_uploadWindow() {
+        operation.excute(createEvents(100));
+        assertEquals(100, succeededList.size());
+        assertEquals(0, failedList.size());
+        assertEquals(10, postCount.get());
+        // up to uploadWindow chunks are posted at once
+        assertTrue(maxActiveCount.get() > 1);
+        assertTrue(maxActiveCount.get() <= 3);
+    }
+
+    @Test
+    public void test_uploadWindowPartialFailure() {
+        failure = body -> body.contains("15.txt");
+        operation.excute(createEvents(100));
+        assertEquals(90, succeededList.size());
+        assertEquals(10, failedList.size());
+        for (final Event event : failedList) {
+            final int index = Integer.parseInt(((String) event.get(FileWatchTask.FILE)).replaceAll("\\D", ""));
+            assertTrue(index >= 10 && index < 20);
+        }
+        // the failed chunk is retried maxRetryCount times
+        assertEquals(11, postCount.get());
+    }
+
+    @Test
+    public void test_uploadWindowStopsOnOpenCircuit() {
+        operation.destroy();
+        operation = createOperation("restapi-circuit-test.properties");
+        failure = body -> true;
+        operation.excute(createEvents(100));
+        assertEquals(0, succeededList.size());
+        assertEquals(100, failedList.size());
+        // no chunk is submitted after the first failure opens the circuit
+        assertTrue(postCount.get() <= 3);
+    }
+}
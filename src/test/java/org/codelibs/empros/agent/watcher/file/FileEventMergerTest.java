@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.watcher.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.codelibs.empros.agent.event.CoalescingEventQueue;
+import org.codelibs.empros.agent.event.Event;
+import org.junit.Test;
+
+public class FileEventMergerTest {
+
+    private String merge(final String... kinds) {
+        return mergeFrom(Event.SOURCE_WATCHER, kinds);
+    }
+
+    // the first event comes from the source, and the others from the watcher
+    private String mergeFrom(final String source, final String... kinds) {
+        final CoalescingEventQueue queue = new CoalescingEventQueue();
+        queue.setEventMerger(new FileEventMerger());
+        for (int i = 0; i < kinds.length; i++) {
+            final Event event = FileWatchTask.createEvent(kinds[i], Paths.get("/tmp/a.txt"), System.currentTimeMillis(),
+                    Collections.emptyList());
+            event.setSource(i == 0 ? source : Event.SOURCE_WATCHER);
+            queue.add(event);
+        }
+        final Event event = queue.poll();
+        assertTrue(queue.isEmpty());
+        return event == null ? null : (String) event.get(FileWatchTask.KIND);
+    }
+
+    @Test
+    public void test_merge() {
+        assertEquals(FileWatchTask.CREATE, merge(FileWatchTask.CREATE, FileWatchTask.MODIFY, FileWatchTask.MODIFY));
+        assertNull(merge(FileWatchTask.CREATE, FileWatchTask.MODIFY, FileWatchTask.DELETE));
+        assertEquals(FileWatchTask.CREATE, merge(FileWatchTask.CREATE, FileWatchTask.DELETE, FileWatchTask.CREATE));
+        assertEquals(FileWatchTask.DELETE, merge(FileWatchTask.MODIFY, FileWatchTask.DELETE));
+        assertEquals(FileWatchTask.MODIFY, merge(FileWatchTask.DELETE, FileWatchTask.CREATE));
+        assertEquals(FileWatchTask.MODIFY, merge(FileWatchTask.MODIFY, FileWatchTask.MODIFY));
+        assertEquals(FileWatchTask.OVERFLOW, merge(FileWatchTask.CREATE, FileWatchTask.OVERFLOW, FileWatchTask.DELETE));
+    }
+
+    @Test
+    public void test_mergeScannedCreate() {
+        // the server may have the file, so the delete is kept
+        assertEquals(FileWatchTask.DELETE, mergeFrom(Event.SOURCE_SCANNER, FileWatchTask.CREATE, FileWatchTask.DELETE));
+        assertEquals(FileWatchTask.DELETE, mergeFrom(Event.SOURCE_RESTORE, FileWatchTask.CREATE, FileWatchTask.DELETE));
+        assertEquals(FileWatchTask.DELETE, mergeFrom(null, FileWatchTask.CREATE, FileWatchTask.DELETE));
+        // a modify keeps where the create came from
+        assertEquals(FileWatchTask.DELETE,
+                mergeFrom(Event.SOURCE_SCANNER, FileWatchTask.CREATE, FileWatchTask.MODIFY, FileWatchTask.DELETE));
+        assertNull(mergeFrom(Event.SOURCE_WATCHER, FileWatchTask.CREATE, FileWatchTask.MODIFY, FileWatchTask.DELETE));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012-2020 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.empros.agent.watcher.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.empros.agent.event.Event;
+import org.junit.Test;
+
+public class FileEventTest {
+
+    @Test
+    public void test_mapView() {
+        final FileEvent event = new FileEvent(FileWatchTask.MODIFY, "/tmp/a.txt", 1000L);
+        final Map<String, Object> map = new HashMap<>();
+        map.put(FileWatchTask.FILE, "/tmp/a.txt");
+        map.put(FileWatchTask.KIND, FileWatchTask.MODIFY);
+        map.put(FileWatchTask.TIMESTAMP, 1000L);
+
+        assertEquals(3, event.size());
+        assertEquals(map, event);
+        assertEquals(event, map);
+        assertEquals(map.hashCode(), event.hashCode(false));
+        assertEquals(map.toString(), event.toString());
+        assertEquals(new ArrayList<>(map.keySet()), new ArrayList<>(event.keySet()));
+        assertEquals(1000L, event.get(FileWatchTask.TIMESTAMP));
+
+        event.put("owner", "user1");
+        event.put(FileWatchTask.KIND, "rename");
+        assertEquals("rename", event.get(FileWatchTask.KIND));
+        assertNull(event.getKind());
+        event.put(FileWatchTask.KIND, FileWatchTask.DELETE);
+        assertEquals(FileWatchTask.DELETE, event.getKind());
+        assertEquals(4, event.size());
+        assertEquals(Arrays.asList(FileWatchTask.FILE, FileWatchTask.KIND, FileWatchTask.TIMESTAMP, "owner"),
+                new ArrayList<>(event.keySet()));
+
+        event.remove(FileWatchTask.TIMESTAMP);
+        assertFalse(event.containsKey(FileWatchTask.TIMESTAMP));
+        assertEquals(3, event.size());
+        event.entrySet().removeIf(e -> e.getKey().equals(FileWatchTask.FILE));
+        assertNull(event.get(FileWatchTask.FILE));
+        event.clear();
+        assertTrue(event.isEmpty());
+    }
+
+    @Test
+    public void test_path() {
+        final FileEvent event1 = new FileEvent(FileWatchTask.CREATE, new String("/tmp/dir/a.txt"), 1000L);
+        final FileEvent event2 = new FileEvent(FileWatchTask.CREATE, new String("/tmp/dir/b.txt"), 1000L);
+        assertEquals("/tmp/dir/a.txt", event1.getPath());
+        assertEquals("/tmp/dir/a.txt".hashCode(), event1.getPathHash());
+        // the parent directory is shared
+        assertSame(event1.getParent(), event2.getParent());
+        assertEquals("a.txt", new FileEvent(FileWatchTask.CREATE, "a.txt", 0L).getPath());
+
+        final Event event3 = FileWatchTask.createEvent(FileWatchTask.MODIFY, java.nio.file.Paths.get("/tmp/dir/a.txt"),
+                1000L, new ArrayList<>());
+        final Event event4 = new Event();
+        event4.put(FileWatchTask.FILE, "/tmp/dir/a.txt");
+        event4.setEventComparator(event3.getEventComparator());
+        event1.setEventComparator(event3.getEventComparator());
+        assertEquals(event1, event3);
+        assertEquals(event1.hashCode(), event3.hashCode());
+        assertEquals(event3, event4);
+        assertEquals(event3.hashCode(), event4.hashCode());
+        assertFalse(event1.isSamePath(event2));
+    }
+
+    @Test
+    public void test_serialize() throws Exception {
+        final Event event = FileWatchTask.createEvent(FileWatchTask.CREATE, java.nio.file.Paths.get("/tmp/a.txt"),
+                1000L, new ArrayList<>());
+        event.put("owner", "user1");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(event);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            final Event restored = (Event) ois.readObject();
+            assertEquals(event, restored);
+            assertEquals(event.hashCode(), restored.hashCode());
+            assertEquals(4, restored.size());
+            assertEquals(1000L, restored.get(FileWatchTask.TIMESTAMP));
+        }
+    }
+
+    @Test
+    public void test_defaultMethods() {
+        final FileEvent event = new FileEvent(FileWatchTask.CREATE, "/tmp/a.txt", 1000L);
+        final Map<String, Object> map = new HashMap<>(event);
+
+        // the slots are read and written through get and put
+        assertEquals(FileWatchTask.MODIFY, event.compute(FileWatchTask.KIND, (k, v) -> FileWatchTask.MODIFY));
+        map.compute(FileWatchTask.KIND, (k, v) -> FileWatchTask.MODIFY);
+        assertEquals(FileWatchTask.MODIFY, event.getKind());
+        assertEquals(2000L, event.computeIfPresent(FileWatchTask.TIMESTAMP, (k, v) -> (Long) v * 2));
+        map.computeIfPresent(FileWatchTask.TIMESTAMP, (k, v) -> (Long) v * 2);
+        assertEquals(2000L, event.getTimestamp());
+        assertEquals("/tmp/a.txt", event.computeIfAbsent(FileWatchTask.FILE, k -> "/tmp/b.txt"));
+        assertEquals("user1", event.computeIfAbsent("owner", k -> "user1"));
+        map.computeIfAbsent("owner", k -> "user1");
+        assertEquals("user1,user2", event.merge("owner", "user2", (v1, v2) -> v1 + "," + v2));
+        map.merge("owner", "user2", (v1, v2) -> v1 + "," + v2);
+        assertEquals(map, event);
+
+        assertNull(event.replace("group", "group1"));
+        assertFalse(event.containsKey("group"));
+        assertEquals("/tmp/a.txt", event.replace(FileWatchTask.FILE, "/tmp/c.txt"));
+        map.replace(FileWatchTask.FILE, "/tmp/c.txt");
+        assertEquals("/tmp/c.txt", event.getPath());
+        assertFalse(event.replace(FileWatchTask.KIND, FileWatchTask.CREATE, FileWatchTask.DELETE));
+        assertTrue(event.replace(FileWatchTask.KIND, FileWatchTask.MODIFY, FileWatchTask.DELETE));
+        map.replace(FileWatchTask.KIND, FileWatchTask.MODIFY, FileWatchTask.DELETE);
+        assertEquals(FileWatchTask.DELETE, event.getKind());
+        assertEquals(map, event);
+
+        // a value that does not fit the slot is kept as an entry
+        event.replaceAll((k, v) -> FileWatchTask.TIMESTAMP.equals(k) ? "now" : v);
+        map.replaceAll((k, v) -> FileWatchTask.TIMESTAMP.equals(k) ? "now" : v);
+        assertEquals("now", event.get(FileWatchTask.TIMESTAMP));
+        assertEquals(0L, event.getTimestamp());
+        assertEquals(map, event);
+
+        assertFalse(event.remove(FileWatchTask.KIND, FileWatchTask.CREATE));
+        assertTrue(event.remove(FileWatchTask.KIND, FileWatchTask.DELETE));
+        assertNull(event.getKind());
+        assertNull(event.computeIfPresent("owner", (k, v) -> null));
+        assertNull(event.compute(FileWatchTask.FILE, (k, v) -> null));
+        assertNull(event.merge(FileWatchTask.TIMESTAMP, "later", (v1, v2) -> null));
+        assertFalse(event.hasPath());
+        assertTrue(event.isEmpty());
+    }
+}